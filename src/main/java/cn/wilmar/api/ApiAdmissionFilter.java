@@ -0,0 +1,370 @@
+package cn.wilmar.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 限流和过载保护的配置，见 application.properties 中的 api.rate-limit.*
+ */
+@Data
+@Component
+@ConfigurationProperties("api.rate-limit")
+class RateLimitProperties {
+    /**
+     * 是否开启
+     */
+    boolean enabled = true;
+    /**
+     * 没有认证身份的请求是否按来源地址区分客户端，关闭时这些请求只受接口的限制。
+     * 部署在负载均衡之后时应开启 server.use-forward-headers（只信任 server.tomcat.internal-proxies 转发的 X-Forwarded-For），
+     * 否则所有请求的来源地址都是负载均衡的地址，应关闭本项
+     */
+    boolean remoteAddressFallback = true;
+    /**
+     * 每个客户端每秒的请求数
+     */
+    double clientRate = 50;
+    /**
+     * 每个客户端允许的突发请求数
+     */
+    int clientBurst = 100;
+    /**
+     * 每个接口每秒的请求数（所有客户端合计）
+     */
+    double endpointRate = 1000;
+    /**
+     * 每个接口允许的突发请求数
+     */
+    int endpointBurst = 2000;
+    /**
+     * 按接口（请求方法和路径，同指标的 endpoint 标签）覆盖 endpointRate，如 api.rate-limit.endpoint-rates.[GET /api/users]=200
+     */
+    Map<String, Double> endpointRates = new HashMap<>();
+    /**
+     * 客户端数超过该值时清理空闲的客户端
+     */
+    int maxClients = 100_000;
+    /**
+     * 基于延迟的过载保护
+     */
+    Shedding shedding = new Shedding();
+
+    @Data
+    static class Shedding {
+        /**
+         * 是否开启
+         */
+        boolean enabled = true;
+        /**
+         * 目标延迟，超过时降低接口的并发上限
+         */
+        long latencyTargetMs = 500;
+        /**
+         * 接口初始的并发上限
+         */
+        int initialLimit = 100;
+        /**
+         * 并发上限的下限
+         */
+        int minLimit = 4;
+        /**
+         * 并发上限的上限
+         */
+        int maxLimit = 200;
+        /**
+         * 每次降低时乘以的系数
+         */
+        double backoff = 0.9;
+        /**
+         * 不做过载保护的接口（长轮询、流式导入导出），格式同指标的 endpoint 标签
+         */
+        List<String> excluded = new ArrayList<>();
+    }
+}
+
+/**
+ * /api/** 的准入控制，在请求进入 Spring MVC 之前执行：
+ * <ol>
+ * <li>每个客户端一个令牌桶，超出返回 429。客户端按认证身份区分，没有时按来源地址（可关闭）；
+ * 不使用客户端自己提供的请求头，客户端无法通过更换请求头绕过限制</li>
+ * <li>每个接口一个令牌桶，超出返回 429</li>
+ * <li>每个接口一个自适应的并发上限（AIMD）：请求延迟超过目标时按比例降低，否则缓慢增加；
+ * 超出上限返回 503，请求不在 Tomcat 队列中堆积</li>
+ * </ol>
+ * 令牌桶使用 GCRA 算法，状态只有一个 AtomicLong，通过 CAS 更新，不加锁。
+ * 拒绝的响应都带 Retry-After。指标：api.admission.rejected{endpoint,reason}、api.admission.limit、api.admission.in.flight
+ */
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+@Component
+class ApiAdmissionFilter extends OncePerRequestFilter {
+
+    static final String METRIC_PREFIX = "api.admission";
+
+    /**
+     * 接口数的上限，超出的路径合并到一个桶中，避免随意构造的路径占用内存
+     */
+    static final int MAX_ENDPOINTS = 256;
+
+    private static final Pattern ID_SEGMENT = Pattern.compile("/\\d+(?=/|$)");
+    private static final String ERROR_HEADER = "X-RestfulApiDemo-error";
+
+    private final RateLimitProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Bucket> clients = new ConcurrentHashMap<>();
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    ApiAdmissionFilter(RateLimitProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !properties.isEnabled() || !request.getRequestURI().startsWith(request.getContextPath() + "/api/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long now = System.nanoTime();
+        Endpoint endpoint = endpoint(request);
+
+        Bucket client = client(request, now);
+        long wait = client == null ? 0 : client.acquire(now);
+        if (wait > 0) {
+            reject(response, endpoint, HttpStatus.TOO_MANY_REQUESTS, "client", wait, "请求过于频繁");
+            return;
+        }
+        wait = endpoint.bucket.acquire(now);
+        if (wait > 0) {
+            reject(response, endpoint, HttpStatus.TOO_MANY_REQUESTS, "endpoint", wait, "接口请求过多");
+            return;
+        }
+        if (!endpoint.tryEnter()) {
+            reject(response, endpoint, HttpStatus.SERVICE_UNAVAILABLE, "overload", TimeUnit.SECONDS.toNanos(1), "服务繁忙");
+            return;
+        }
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            async = request.isAsyncStarted();
+        } finally {
+            if (async) {
+                request.getAsyncContext().addListener(new CompletionListener(endpoint, now));
+            } else {
+                endpoint.exit(now);
+            }
+        }
+    }
+
+    private void reject(HttpServletResponse response, Endpoint endpoint, HttpStatus status, String reason, long waitNanos, String message) {
+        endpoint.rejected(reason).increment();
+        response.setStatus(status.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999))));
+        response.setHeader(ERROR_HEADER, message);
+    }
+
+    /**
+     * @return 无法区分客户端（没有认证身份，且关闭了按来源地址区分）时返回 null
+     */
+    private Bucket client(HttpServletRequest request, long now) {
+        String key;
+        if (request.getUserPrincipal() != null) {
+            key = "user:" + request.getUserPrincipal().getName();
+        } else if (properties.isRemoteAddressFallback()) {
+            key = "address:" + request.getRemoteAddr();
+        } else {
+            return null;
+        }
+        Bucket bucket = clients.get(key);
+        if (bucket == null) {
+            sweep(now);
+            bucket = clients.computeIfAbsent(key, k -> new Bucket(properties.getClientRate(), properties.getClientBurst()));
+        }
+        return bucket;
+    }
+
+    /**
+     * 令牌已满的客户端与新客户端没有区别，可以直接删除；每秒最多清理一次
+     */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (clients.size() >= properties.getMaxClients() && now - last > TimeUnit.SECONDS.toNanos(1)
+                && lastSweep.compareAndSet(last, now)) {
+            clients.values().removeIf(bucket -> bucket.isFull(now));
+        }
+    }
+
+    /**
+     * 接口按请求方法和路径区分，路径中的数字 ID 替换为 {id}，与指标的 endpoint 标签一致
+     */
+    private Endpoint endpoint(HttpServletRequest request) {
+        String path = ID_SEGMENT.matcher(request.getRequestURI().substring(request.getContextPath().length())).replaceAll("/{id}");
+        String key = request.getMethod() + " " + path;
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            if (endpoints.size() >= MAX_ENDPOINTS) {
+                key = request.getMethod() + " OTHER";
+            }
+            endpoint = endpoints.computeIfAbsent(key, Endpoint::new);
+        }
+        return endpoint;
+    }
+
+    /**
+     * GCRA（通用信元速率算法）令牌桶：tat 为下一个请求的理论到达时间，
+     * 允许的条件是 tat 领先当前时间不超过 (burst - 1) 个间隔
+     */
+    static final class Bucket {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(double ratePerSecond, int burst) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+            this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        }
+
+        /**
+         * @return 0 表示允许，否则为需要等待的纳秒数
+         */
+        long acquire(long now) {
+            while (true) {
+                long current = tat.get();
+                long base = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+                long ahead = base - now;
+                if (ahead > toleranceNanos) {
+                    return ahead - toleranceNanos;
+                }
+                if (tat.compareAndSet(current, base + intervalNanos)) {
+                    return 0;
+                }
+            }
+        }
+
+        boolean isFull(long now) {
+            long current = tat.get();
+            return current == Long.MIN_VALUE || current - now <= 0;
+        }
+    }
+
+    final class Endpoint {
+        final Bucket bucket;
+        private final String name;
+        private final boolean adaptive;
+        private final long latencyTargetNanos;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong lastBackoff = new AtomicLong(System.nanoTime());
+        private final Map<String, Counter> rejected = new ConcurrentHashMap<>();
+        /**
+         * 并发上限，近似值：并发更新时不加锁，个别更新丢失不影响效果
+         */
+        private volatile double limit;
+
+        Endpoint(String name) {
+            RateLimitProperties.Shedding shedding = properties.getShedding();
+            this.name = name;
+            this.bucket = new Bucket(properties.getEndpointRates().getOrDefault(name, properties.getEndpointRate()),
+                    properties.getEndpointBurst());
+            this.adaptive = shedding.isEnabled() && !shedding.getExcluded().contains(name);
+            this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(shedding.getLatencyTargetMs());
+            this.limit = shedding.getInitialLimit();
+            Gauge.builder(METRIC_PREFIX + ".limit", this, e -> e.limit).tag("endpoint", name)
+                    .description("Adaptive concurrency limit of the endpoint")
+                    .register(meterRegistry);
+            Gauge.builder(METRIC_PREFIX + ".in.flight", inFlight, AtomicInteger::get).tag("endpoint", name)
+                    .description("Requests being processed by the endpoint")
+                    .register(meterRegistry);
+        }
+
+        boolean tryEnter() {
+            if (inFlight.incrementAndGet() > limit && adaptive) {
+                inFlight.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * AIMD：超过目标延迟时乘以 backoff（每个目标延迟周期最多一次，避免同一批慢请求连续降低），否则加 1/limit
+         */
+        void exit(long startNanos) {
+            inFlight.decrementAndGet();
+            if (!adaptive) {
+                return;
+            }
+            RateLimitProperties.Shedding shedding = properties.getShedding();
+            long now = System.nanoTime();
+            if (now - startNanos > latencyTargetNanos) {
+                long last = lastBackoff.get();
+                if (now - last > latencyTargetNanos && lastBackoff.compareAndSet(last, now)) {
+                    limit = Math.max(shedding.getMinLimit(), limit * shedding.getBackoff());
+                }
+            } else if (limit < shedding.getMaxLimit()) {
+                limit = Math.min(shedding.getMaxLimit(), limit + 1 / limit);
+            }
+        }
+
+        Counter rejected(String reason) {
+            return rejected.computeIfAbsent(reason, r -> Counter.builder(METRIC_PREFIX + ".rejected")
+                    .tags("endpoint", name, "reason", r)
+                    .description("Requests rejected by rate limits (client, endpoint) or load shedding (overload)")
+                    .register(meterRegistry));
+        }
+    }
+
+    private static final class CompletionListener implements AsyncListener {
+        private final Endpoint endpoint;
+        private final long startNanos;
+
+        CompletionListener(Endpoint endpoint, long startNanos) {
+            this.endpoint = endpoint;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            endpoint.exit(startNanos);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
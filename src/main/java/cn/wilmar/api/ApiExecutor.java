@@ -0,0 +1,200 @@
+package cn.wilmar.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 批量授予、撤销角色等耗时较长的接口的执行方式。默认（api.async.enabled=false）在请求线程中执行；
+ * 开启后在独立的有界线程池（JDK 支持时使用虚拟线程）中执行，请求线程立即归还给 Tomcat，
+ * 长事务不会占满 Tomcat 线程而拖慢其他接口。其余接口直接返回 ResponseEntity，不经过这里。
+ * <p>
+ * 每个接口有独立的并发上限，超出上限或线程池队列已满时直接返回 503。
+ * 指标：api.async.in.flight、api.async.rejected（按 endpoint），api.async.queued、api.async.running（已提交未开始、正在执行的任务数，
+ * 虚拟线程同样适用），平台线程池另见 executor.*{name=api.async}
+ */
+@Component
+class ApiExecutor implements DisposableBean {
+
+    static final String METRIC_PREFIX = "api.async";
+
+    private final Logger logger = LoggerFactory.getLogger(ApiExecutor.class);
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final int maxConcurrency;
+    private final ExecutorService executor;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+
+    ApiExecutor(MeterRegistry meterRegistry,
+                @Value("${api.async.enabled:false}") boolean enabled,
+                @Value("${api.async.pool-size:64}") int poolSize,
+                @Value("${api.async.queue-capacity:1000}") int queueCapacity,
+                @Value("${api.async.virtual-threads:true}") boolean virtualThreads,
+                @Value("${api.async.max-concurrency:256}") int maxConcurrency) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.maxConcurrency = maxConcurrency;
+        if (!enabled) {
+            this.executor = null;
+            return;
+        }
+        ExecutorService pool = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), new NamedThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+            logger.info("Async API mode on a bounded pool: {} threads, queue capacity {}", poolSize, queueCapacity);
+        } else {
+            logger.info("Async API mode on virtual threads");
+        }
+        this.executor = ExecutorServiceMetrics.monitor(meterRegistry, pool, METRIC_PREFIX, Tags.empty());
+        // ExecutorServiceMetrics 只能读取 ThreadPoolExecutor 的队列，虚拟线程执行器自己计数
+        Gauge.builder(METRIC_PREFIX + ".queued", queued, AtomicInteger::get)
+                .description("Tasks submitted to the async executor and not started yet")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".running", running, AtomicInteger::get)
+                .description("Tasks running on the async executor")
+                .register(meterRegistry);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 执行控制器逻辑
+     *
+     * @param endpoint 接口名称，用于并发上限和指标
+     * @param task     控制器逻辑，异常原样交给 @ExceptionHandler 处理
+     * @return 同步模式下返回已经设置结果的 DeferredResult
+     */
+    <T> DeferredResult<ResponseEntity<T>> submit(String endpoint, Supplier<ResponseEntity<T>> task) {
+        DeferredResult<ResponseEntity<T>> result = new DeferredResult<>();
+        if (!enabled) {
+            run(task, result);
+            return result;
+        }
+        Endpoint limit = endpoints.computeIfAbsent(endpoint, this::endpoint);
+        if (!limit.permits.tryAcquire()) {
+            limit.rejected.increment();
+            result.setResult(unavailable());
+            return result;
+        }
+        RequestStats stats = RequestStats.current();
+        queued.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                queued.decrementAndGet();
+                running.incrementAndGet();
+                RequestStats previous = RequestStats.bind(stats);
+                try {
+                    run(task, result);
+                } finally {
+                    RequestStats.bind(previous);
+                    running.decrementAndGet();
+                    limit.permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            limit.permits.release();
+            limit.rejected.increment();
+            result.setResult(unavailable());
+        }
+        return result;
+    }
+
+    /**
+     * 异常作为错误结果，异步分派后仍能匹配到 @ExceptionHandler
+     */
+    private static <T> void run(Supplier<ResponseEntity<T>> task, DeferredResult<ResponseEntity<T>> result) {
+        try {
+            result.setResult(task.get());
+        } catch (Throwable e) {
+            result.setErrorResult(e);
+        }
+    }
+
+    private static <T> ResponseEntity<T> unavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+    }
+
+    private Endpoint endpoint(String name) {
+        Endpoint endpoint = new Endpoint(maxConcurrency,
+                Counter.builder(METRIC_PREFIX + ".rejected").tag("endpoint", name)
+                        .description("Requests rejected by the endpoint concurrency limit or a full queue")
+                        .register(meterRegistry));
+        Gauge.builder(METRIC_PREFIX + ".in.flight", endpoint, e -> maxConcurrency - e.permits.availablePermits())
+                .tag("endpoint", name)
+                .description("Requests queued or running on the async executor")
+                .register(meterRegistry);
+        return endpoint;
+    }
+
+    /**
+     * JDK 21 起的 Executors.newVirtualThreadPerTaskExecutor()，通过反射调用以兼容 Java 8 编译
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads are not available on this JDK", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static final class Endpoint {
+        final Semaphore permits;
+        final Counter rejected;
+
+        Endpoint(int maxConcurrency, Counter rejected) {
+            this.permits = new Semaphore(maxConcurrency);
+            this.rejected = rejected;
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "api-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,664 @@
+package cn.wilmar.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import lombok.Data;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.AuditorAware;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 审计动作
+ */
+enum AuditAction {
+    CREATED,
+    /**
+     * 一个字段的修改，field/oldValue/newValue 为字段名和修改前后的值
+     */
+    UPDATED,
+    DELETED,
+    /**
+     * 授予角色，newValue 为角色 ID
+     */
+    ROLE_ADDED,
+    /**
+     * 撤销角色，oldValue 为角色 ID
+     */
+    ROLE_REMOVED
+}
+
+/**
+ * 审计记录，映射数据库 audit_entry 表：谁在什么时间修改了哪个用户的哪个字段（或角色）
+ */
+@Data
+@ApiModel(description = "审计记录")
+@Entity
+@Table(indexes = @Index(name = "idx_audit_entry_entity", columnList = "entityType, entityId, id"))
+class AuditEntry {
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY) @ApiModelProperty(value = "审计记录 ID，越大越新", example = "1")
+    Long id;
+    @Enumerated(EnumType.STRING) @Column(nullable = false, length = 10) @ApiModelProperty(value = "对象类型", example = "USER")
+    ChangeEntityType entityType;
+    @Column(nullable = false) @ApiModelProperty(value = "对象 ID", example = "1")
+    Long entityId;
+    @Enumerated(EnumType.STRING) @Column(nullable = false, length = 20) @ApiModelProperty(value = "动作", example = "UPDATED")
+    AuditAction action;
+    @Column(length = 50) @ApiModelProperty(value = "修改的字段", example = "name")
+    String field;
+    @ApiModelProperty(value = "修改前的值，密码显示为 ******")
+    String oldValue;
+    @ApiModelProperty(value = "修改后的值，密码显示为 ******")
+    String newValue;
+    @Column(nullable = false) @ApiModelProperty(value = "修改时间（事务中捕获的时间，不是写入审计表的时间）")
+    LocalDateTime changedDate;
+    @Column(length = 50) @ApiModelProperty(value = "修改人", example = "system")
+    String changedBy;
+
+    static AuditEntry of(ChangeEntityType entityType, Long entityId, AuditAction action, String field,
+                         String oldValue, String newValue, LocalDateTime changedDate, String changedBy) {
+        AuditEntry entry = new AuditEntry();
+        entry.setEntityType(entityType);
+        entry.setEntityId(entityId);
+        entry.setAction(action);
+        entry.setField(field);
+        entry.setOldValue(oldValue);
+        entry.setNewValue(newValue);
+        entry.setChangedDate(changedDate);
+        entry.setChangedBy(changedBy);
+        return entry;
+    }
+}
+
+/**
+ * 审计记录的查询，写入由 {@link AuditTrail} 批量执行
+ */
+interface AuditEntryRepository extends JpaRepository<AuditEntry, Long> {
+
+    /**
+     * 按 ID 倒序查询 before 之前的审计记录，条件为 null 时不过滤
+     */
+    @Query("SELECT a FROM AuditEntry a WHERE a.id < ?1 AND (?2 IS NULL OR a.entityType = ?2) "
+            + "AND (?3 IS NULL OR a.entityId = ?3) AND (?4 IS NULL OR a.changedBy = ?4) ORDER BY a.id DESC")
+    List<AuditEntry> findBefore(long before, ChangeEntityType entityType, Long entityId, String changedBy, Pageable pageable);
+}
+
+/**
+ * 审计日志：修改在事务提交后放入有界的无锁队列，由后台线程按批写入 audit_entry，不占用请求的事务和连接。
+ * <p>
+ * 队列满时（写入跟不上）按 api.audit.overflow 处理：block 让提交修改的线程等待队列空出位置（写入线程写完一批后唤醒），
+ * 请求随之变慢（背压），一次提交的所有记录合计最多等待 api.audit.offer-timeout-ms，之后仍然没有位置的记录丢弃；drop 直接丢弃。
+ * 丢弃的记录计数并输出警告日志。Hibernate 事务中的记录在提交之前预留位置（见 {@link #reserve(int)}），
+ * 提交之后只放入已预留的位置，不在事务完成的回调中等待。
+ * 应用关闭时写完队列中剩余的记录，进程崩溃时队列中尚未写入的记录会丢失。
+ * 指标：api.audit.queue.size、api.audit.queue.capacity、api.audit.entries（result=queued/blocked/dropped/written/failed）、
+ * api.audit.batch.size、api.audit.flush、api.audit.lag（修改提交到写入审计表的时间）
+ */
+@Component
+class AuditTrail implements DisposableBean {
+
+    enum Overflow {
+        BLOCK,
+        DROP
+    }
+
+    static final String INSERT = "INSERT INTO audit_entry (entity_type, entity_id, action, field, old_value, new_value, changed_date, changed_by) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * 字段值的最大长度，超出的截断
+     */
+    static final int MAX_VALUE_LENGTH = 255;
+
+    private final Logger logger = LoggerFactory.getLogger(AuditTrail.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean enabled;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Overflow overflow;
+    private final long offerTimeoutNanos;
+
+    /**
+     * ConcurrentLinkedQueue 本身无界，用 size 的 CAS 预留位置实现有界
+     */
+    private final Queue<AuditEntry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * 等待队列空出位置的线程数，写入线程只在有等待者时发出通知
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition space = lock.newCondition();
+    private final Thread writer = new Thread(this::drain, "audit-writer");
+    private volatile boolean running = true;
+
+    private final Counter queued;
+    private final Counter blocked;
+    private final Counter dropped;
+    private final Counter written;
+    private final Counter failed;
+    private final DistributionSummary batches;
+    private final Timer flushes;
+    private final Timer lag;
+
+    AuditTrail(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry,
+               @Value("${api.audit.enabled:true}") boolean enabled,
+               @Value("${api.audit.queue-capacity:10000}") int capacity,
+               @Value("${api.audit.batch-size:500}") int batchSize,
+               @Value("${api.audit.flush-interval-ms:200}") long flushIntervalMillis,
+               @Value("${api.audit.overflow:block}") String overflow,
+               @Value("${api.audit.offer-timeout-ms:1000}") long offerTimeoutMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.overflow = Overflow.valueOf(overflow.trim().toUpperCase(Locale.ROOT));
+        this.offerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+
+        Gauge.builder("api.audit.queue.size", size, AtomicInteger::get)
+                .description("Audit entries waiting to be written")
+                .register(meterRegistry);
+        Gauge.builder("api.audit.queue.capacity", this, trail -> trail.capacity)
+                .description("Maximum audit entries waiting to be written")
+                .register(meterRegistry);
+        this.queued = entries(meterRegistry, "queued");
+        this.blocked = entries(meterRegistry, "blocked");
+        this.dropped = entries(meterRegistry, "dropped");
+        this.written = entries(meterRegistry, "written");
+        this.failed = entries(meterRegistry, "failed");
+        this.batches = DistributionSummary.builder("api.audit.batch.size")
+                .description("Audit entries written per batch")
+                .register(meterRegistry);
+        this.flushes = Timer.builder("api.audit.flush")
+                .description("Time to write one batch of audit entries")
+                .register(meterRegistry);
+        this.lag = Timer.builder("api.audit.lag")
+                .description("Time from a committed change to its audit entry being written, oldest entry of each batch")
+                .register(meterRegistry);
+    }
+
+    private static Counter entries(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("api.audit.entries")
+                .description("Audit entries by outcome")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 预留位置并放入队列，不等待写入。只应在修改提交之后、事务之外调用
+     */
+    void record(Collection<AuditEntry> entries) {
+        record(entries, reserve(entries.size()));
+    }
+
+    /**
+     * 为 count 条记录预留队列位置。队列满时 block 模式等待写入线程空出位置，所有记录共用一个等待期限，
+     * 批量导入等大事务最多等待 offer-timeout-ms，而不是每条记录各等一次
+     *
+     * @return 预留到的位置数，之后必须交给 {@link #record(Collection, int)} 或 {@link #release(int)}
+     */
+    int reserve(int count) {
+        if (!enabled || count == 0) {
+            return 0;
+        }
+        int reserved = tryReserve(count);
+        if (reserved < count && overflow == Overflow.BLOCK) {
+            reserved += awaitSpace(count - reserved, System.nanoTime() + offerTimeoutNanos);
+        }
+        return reserved;
+    }
+
+    /**
+     * 把前 reserved 条记录放入预留的位置，其余的丢弃
+     */
+    void record(Collection<AuditEntry> entries, int reserved) {
+        if (!enabled || entries.isEmpty()) {
+            return;
+        }
+        int lost = 0;
+        AuditEntry firstLost = null;
+        for (AuditEntry entry : entries) {
+            if (reserved > 0) {
+                reserved--;
+                queue.offer(entry);
+                queued.increment();
+            } else {
+                dropped.increment();
+                if (lost++ == 0) {
+                    firstLost = entry;
+                }
+            }
+        }
+        release(reserved);
+        if (lost > 0) {
+            logger.warn("Audit queue full, dropped {} entries, first {}", lost, firstLost);
+        }
+        if (size.get() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * 释放未使用的预留位置（事务回滚）
+     */
+    void release(int reserved) {
+        if (reserved > 0) {
+            size.addAndGet(-reserved);
+            signalSpace();
+        }
+    }
+
+    /**
+     * 唤醒写入线程，在 deadline 之前等待队列空出位置，写入线程每写完一批通知一次
+     *
+     * @return 等待期间预留到的位置数
+     */
+    private int awaitSpace(int count, long deadline) {
+        blocked.increment(count);
+        int reserved = 0;
+        waiters.incrementAndGet();
+        lock.lock();
+        try {
+            LockSupport.unpark(writer);
+            // 先登记等待者再检查：写入线程释放位置之后要么看到等待者并通知，要么这里的检查看到空出的位置
+            while ((reserved += tryReserve(count - reserved)) < count) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                space.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+            waiters.decrementAndGet();
+        }
+        return reserved;
+    }
+
+    private void signalSpace() {
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                space.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 授予/撤销角色的审计记录
+     *
+     * @param pairs 每个元素依次为用户 ID、角色 ID
+     */
+    void rolesChanged(Collection<Long[]> pairs, boolean granted, LocalDateTime changedDate, String changedBy) {
+        List<AuditEntry> entries = new ArrayList<>(pairs.size());
+        for (Long[] pair : pairs) {
+            String role = String.valueOf(pair[1]);
+            entries.add(AuditEntry.of(ChangeEntityType.USER, pair[0], granted ? AuditAction.ROLE_ADDED : AuditAction.ROLE_REMOVED,
+                    "roles", granted ? null : role, granted ? role : null, changedDate, changedBy));
+        }
+        record(entries);
+    }
+
+    int queued() {
+        return size.get();
+    }
+
+    /**
+     * 不等待，预留最多 count 个位置
+     *
+     * @return 预留到的位置数
+     */
+    private int tryReserve(int count) {
+        int current;
+        int reserved;
+        do {
+            current = size.get();
+            reserved = Math.min(count, capacity - current);
+            if (reserved <= 0) {
+                return 0;
+            }
+        } while (!size.compareAndSet(current, current + reserved));
+        return reserved;
+    }
+
+    /**
+     * 后台线程：攒够一批或等待 flush-interval 之后写入；停止后写完剩余的记录
+     */
+    private void drain() {
+        List<AuditEntry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            AuditEntry entry;
+            while (batch.size() < batchSize && (entry = queue.poll()) != null) {
+                batch.add(entry);
+            }
+            if (!batch.isEmpty()) {
+                size.addAndGet(-batch.size());
+                signalSpace();
+                write(batch);
+                batch.clear();
+            }
+            if (running && size.get() < batchSize) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+    }
+
+    private void write(List<AuditEntry> batch) {
+        long start = System.nanoTime();
+        try {
+            jdbcTemplate.batchUpdate(INSERT, batch, batch.size(), (statement, entry) -> {
+                statement.setString(1, entry.getEntityType().name());
+                statement.setLong(2, entry.getEntityId());
+                statement.setString(3, entry.getAction().name());
+                statement.setString(4, entry.getField());
+                setValue(statement, 5, entry.getOldValue());
+                setValue(statement, 6, entry.getNewValue());
+                statement.setTimestamp(7, Timestamp.valueOf(entry.getChangedDate()));
+                statement.setString(8, entry.getChangedBy());
+            });
+            written.increment(batch.size());
+        } catch (RuntimeException e) {
+            failed.increment(batch.size());
+            logger.warn("Failed to write {} audit entries", batch.size(), e);
+            return;
+        } finally {
+            flushes.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        batches.record(batch.size());
+        lag.record(Duration.between(batch.get(0).getChangedDate(), LocalDateTime.now()));
+    }
+
+    private static void setValue(PreparedStatement statement, int index, String value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.VARCHAR);
+        } else {
+            statement.setString(index, value.length() > MAX_VALUE_LENGTH ? value.substring(0, MAX_VALUE_LENGTH) : value);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+    }
+}
+
+/**
+ * 通过 Hibernate 事件捕获 User 的新增、删除和逐字段修改（修改前的值来自 Session 的快照）。
+ * 同一个事务的记录先缓存在 Session 上，提交之前在 {@link AuditTrail} 的队列中预留位置（队列满时在此等待），
+ * 提交成功后放入预留的位置，回滚则丢弃并释放位置。
+ * 版本号和审计时间字段不记录，密码只记录是否修改
+ */
+@Lazy(false)
+@Component
+class AuditRecorder implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final Set<String> IGNORED = new HashSet<>(Arrays.asList(
+            "version", "createDate", "createdBy", "lastModifiedDate", "lastModifiedBy", "roles"));
+    private static final Set<String> MASKED = new HashSet<>(Arrays.asList("password"));
+    private static final String MASK = "******";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final AuditorAware<String> auditorAware;
+    private final AuditTrail auditTrail;
+
+    /**
+     * Session -> 尚未提交的审计记录
+     */
+    private final Map<SharedSessionContractImplementor, Pending> pending = new ConcurrentHashMap<>();
+
+    AuditRecorder(EntityManagerFactory entityManagerFactory, AuditorAware<String> auditorAware, AuditTrail auditTrail) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.auditorAware = auditorAware;
+        this.auditTrail = auditTrail;
+    }
+
+    @PostConstruct
+    void register() {
+        if (!auditTrail.isEnabled()) {
+            return;
+        }
+        EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof User) {
+            record(event.getSession(), (Long) event.getId(), AuditAction.CREATED, null, null, ((User) event.getEntity()).getLogin());
+        }
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (!(event.getEntity() instanceof User)) {
+            return;
+        }
+        Long id = (Long) event.getId();
+        Object[] oldState = event.getOldState();
+        int[] dirty = event.getDirtyProperties();
+        if (oldState == null || dirty == null) {
+            // 没有修改前的快照（如 Session.update 分离对象），只记录修改了
+            record(event.getSession(), id, AuditAction.UPDATED, null, null, null);
+            return;
+        }
+        String[] names = event.getPersister().getPropertyNames();
+        for (int i : dirty) {
+            String name = names[i];
+            if (!IGNORED.contains(name)) {
+                record(event.getSession(), id, AuditAction.UPDATED, name, value(name, oldState[i]), value(name, event.getState()[i]));
+            }
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (event.getEntity() instanceof User) {
+            record(event.getSession(), (Long) event.getId(), AuditAction.DELETED, null, ((User) event.getEntity()).getLogin(), null);
+        }
+    }
+
+    private static String value(String name, Object value) {
+        if (value == null) {
+            return null;
+        }
+        return MASKED.contains(name) ? MASK : String.valueOf(value);
+    }
+
+    private void record(SharedSessionContractImplementor session, Long id, AuditAction action, String field, String oldValue, String newValue) {
+        AuditEntry entry = AuditEntry.of(ChangeEntityType.USER, id, action, field, oldValue, newValue,
+                LocalDateTime.now(), auditorAware.getCurrentAuditor().orElse(null));
+        pending.computeIfAbsent(session, this::open).entries.add(entry);
+    }
+
+    private Pending open(SharedSessionContractImplementor session) {
+        Pending entries = new Pending(session);
+        ((SessionImplementor) session).getActionQueue().registerProcess((BeforeTransactionCompletionProcess) entries);
+        ((SessionImplementor) session).getActionQueue().registerProcess((AfterTransactionCompletionProcess) entries);
+        return entries;
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return false;
+    }
+
+    /**
+     * Hibernate 5.2 中仍是抽象方法（拼写错误的旧名称），转到 {@link #requiresPostCommitHandling(EntityPersister)}
+     */
+    @Deprecated
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return requiresPostCommitHandling(persister);
+    }
+
+    private final class Pending implements BeforeTransactionCompletionProcess, AfterTransactionCompletionProcess {
+        final SharedSessionContractImplementor session;
+        final List<AuditEntry> entries = new ArrayList<>();
+        int reserved;
+
+        Pending(SharedSessionContractImplementor session) {
+            this.session = session;
+        }
+
+        @Override
+        public void doBeforeTransactionCompletion(SessionImplementor session) {
+            reserved = auditTrail.reserve(entries.size());
+        }
+
+        @Override
+        public void doAfterTransactionCompletion(boolean success, SharedSessionContractImplementor session) {
+            pending.remove(this.session);
+            if (success) {
+                auditTrail.record(entries, reserved);
+            } else {
+                auditTrail.release(reserved);
+            }
+        }
+    }
+}
+
+/**
+ * 一页审计记录
+ */
+@Data
+@ApiModel(description = "一页审计记录")
+class AuditBatch {
+    @ApiModelProperty(value = "审计记录，新的在前")
+    final List<AuditEntry> entries;
+    @ApiModelProperty(value = "下一页（更早的记录）的 before 参数，没有更多记录时为空")
+    final Long next;
+}
+
+/**
+ * 审计日志控制器
+ */
+@Api(value = "/api", description = "审计日志的 API")
+@RestController
+@RequestMapping("/api")
+class AuditController {
+
+    static final int MAX_LIMIT = 1000;
+
+    private final AuditEntryRepository auditEntryRepository;
+
+    AuditController(AuditEntryRepository auditEntryRepository) {
+        this.auditEntryRepository = auditEntryRepository;
+    }
+
+    @ApiOperation(value = "查询审计日志", notes = "按时间倒序返回，用返回的 next 作为 before 继续查询更早的记录。"
+            + "审计记录在修改提交后异步写入，通常在 api.audit.flush-interval-ms 之内可以查到")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "返回成功", response = AuditBatch.class)
+    })
+    @GetMapping("/audit")
+    public ResponseEntity<AuditBatch> getAudit(
+            @ApiParam(value = "对象类型", allowableValues = "USER")
+            @RequestParam(value = "entityType", required = false) ChangeEntityType entityType,
+            @ApiParam(value = "对象 ID")
+            @RequestParam(value = "entityId", required = false) Long entityId,
+            @ApiParam(value = "修改人")
+            @RequestParam(value = "changedBy", required = false) String changedBy,
+            @ApiParam(value = "上次返回的 next，为空时从最新的记录开始")
+            @RequestParam(value = "before", required = false) Long before,
+            @ApiParam(value = "最多返回的条数（1..1000）", defaultValue = "100")
+            @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        int size = Math.max(1, Math.min(limit, MAX_LIMIT));
+        List<AuditEntry> entries = auditEntryRepository.findBefore(before == null ? Long.MAX_VALUE : before,
+                entityType, entityId, changedBy, PageRequest.of(0, size));
+        Long next = entries.size() == size ? entries.get(entries.size() - 1).getId() : null;
+        return ResponseEntity.ok(new AuditBatch(entries, next));
+    }
+}
@@ -0,0 +1,605 @@
+package cn.wilmar.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.actuate.metrics.cache.CacheMeterBinderProvider;
+import org.springframework.boot.actuate.metrics.cache.CaffeineCacheMeterBinderProvider;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.SerializationUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 集群消息总线：多个实例共用一个数据库时，把本实例的缓存失效和数据变化广播给其他实例，
+ * 其他实例据此清除进程内缓存、更新搜索索引和登录账号过滤器、唤醒变化流的长轮询。
+ * <p>
+ * 默认实现是 {@link LocalClusterBus}（同一 JVM 内的实例互相通知）；接入 Redis pub/sub、JMS 等时
+ * 注册一个 @Primary 的实现即可，消息本身可以序列化
+ */
+interface ClusterBus {
+
+    /**
+     * 本实例的 ID，消息的 origin
+     */
+    String nodeId();
+
+    /**
+     * 发送给其他实例（不包括自己），不等待对方处理
+     */
+    void publish(ClusterMessage message);
+
+    /**
+     * 接收其他实例发来的消息
+     */
+    void subscribe(Consumer<ClusterMessage> subscriber);
+
+    /**
+     * 在当前事务提交之后发送，事务回滚则不发送；没有事务时立即发送。
+     * 避免其他实例在提交之前又把旧数据加载进缓存
+     */
+    default void publishAfterCommit(ClusterMessage message) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    publish(message);
+                }
+            });
+        } else {
+            publish(message);
+        }
+    }
+}
+
+/**
+ * 集群消息
+ */
+@Data
+class ClusterMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    enum Kind {
+        /**
+         * 清除缓存中的一个键
+         */
+        CACHE_EVICT,
+        /**
+         * 清空缓存
+         */
+        CACHE_CLEAR,
+        /**
+         * 用户或角色已经变化（事务已提交）
+         */
+        ENTITIES_CHANGED
+    }
+
+    String origin;
+    Kind kind;
+    String cache;
+    Object key;
+    Set<Long> createdUserIds = new HashSet<>();
+    Set<Long> updatedUserIds = new HashSet<>();
+    Set<Long> deletedUserIds = new HashSet<>();
+
+    static ClusterMessage evict(String cache, Object key) {
+        ClusterMessage message = new ClusterMessage();
+        message.setKind(Kind.CACHE_EVICT);
+        message.setCache(cache);
+        message.setKey(key);
+        return message;
+    }
+
+    static ClusterMessage clear(String cache) {
+        ClusterMessage message = new ClusterMessage();
+        message.setKind(Kind.CACHE_CLEAR);
+        message.setCache(cache);
+        return message;
+    }
+
+    static ClusterMessage entitiesChanged() {
+        ClusterMessage message = new ClusterMessage();
+        message.setKind(Kind.ENTITIES_CHANGED);
+        return message;
+    }
+}
+
+/**
+ * 同一 JVM 内的集群（集成测试、本地调试）：api.cluster.name 相同的应用上下文互为成员，为空时不加入任何集群。
+ * 消息经过一次序列化再投递，每个成员用一个线程按发送顺序处理
+ */
+@Component
+class LocalClusterBus implements ClusterBus, DisposableBean {
+
+    private static final Map<String, Set<LocalClusterBus>> CLUSTERS = new ConcurrentHashMap<>();
+
+    private final Logger logger = LoggerFactory.getLogger(LocalClusterBus.class);
+
+    private final String cluster;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<Consumer<ClusterMessage>> subscribers = new CopyOnWriteArrayList<>();
+    private final Counter sent;
+    private final Counter received;
+    private final ExecutorService receiver = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-bus");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LocalClusterBus(@Value("${api.cluster.name:}") String cluster, MeterRegistry meterRegistry) {
+        this.cluster = cluster;
+        this.sent = messages(meterRegistry, "sent");
+        this.received = messages(meterRegistry, "received");
+        if (!cluster.isEmpty()) {
+            CLUSTERS.computeIfAbsent(cluster, name -> ConcurrentHashMap.newKeySet()).add(this);
+        }
+    }
+
+    private static Counter messages(MeterRegistry meterRegistry, String direction) {
+        return Counter.builder("api.cluster.messages")
+                .description("Messages exchanged with other instances")
+                .tag("direction", direction)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        Set<LocalClusterBus> members = cluster.isEmpty() ? null : CLUSTERS.get(cluster);
+        if (members == null || members.size() < 2) {
+            return;
+        }
+        message.setOrigin(nodeId);
+        byte[] bytes = SerializationUtils.serialize(message);
+        for (LocalClusterBus member : members) {
+            if (member != this) {
+                member.deliver(bytes);
+            }
+        }
+        sent.increment();
+    }
+
+    private void deliver(byte[] bytes) {
+        receiver.execute(() -> {
+            ClusterMessage message = (ClusterMessage) SerializationUtils.deserialize(bytes);
+            if (nodeId.equals(message.getOrigin())) {
+                return;
+            }
+            received.increment();
+            for (Consumer<ClusterMessage> subscriber : subscribers) {
+                try {
+                    subscriber.accept(message);
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to handle cluster message {}", message, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void subscribe(Consumer<ClusterMessage> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public void destroy() {
+        if (!cluster.isEmpty()) {
+            CLUSTERS.computeIfPresent(cluster, (name, members) -> {
+                members.remove(this);
+                return members.isEmpty() ? null : members;
+            });
+        }
+        receiver.shutdownNow();
+    }
+}
+
+/**
+ * 进程内缓存的集群失效：@CacheEvict 提交之后在本实例生效（见 {@link EntityCacheManager}），同时广播给其他实例。
+ * 其他实例收到后只清除自己的缓存，不再转发
+ */
+class ClusterCacheManager implements CacheManager {
+
+    private final CacheManager target;
+    private final ObjectProvider<ClusterBus> bus;
+    private final Map<String, ClusterCache> caches = new ConcurrentHashMap<>();
+
+    ClusterCacheManager(CacheManager target, ObjectProvider<ClusterBus> bus) {
+        this.target = target;
+        this.bus = bus;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        ClusterCache cache = caches.get(name);
+        if (cache == null) {
+            Cache local = target.getCache(name);
+            if (local == null) {
+                return null;
+            }
+            cache = caches.computeIfAbsent(name, key -> new ClusterCache(local, bus));
+        }
+        return cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return target.getCacheNames();
+    }
+
+    /**
+     * 执行其他实例发来的缓存失效
+     */
+    void apply(ClusterMessage message) {
+        Cache cache = target.getCache(message.getCache());
+        if (cache == null) {
+            return;
+        }
+        if (message.getKind() == ClusterMessage.Kind.CACHE_EVICT) {
+            cache.evict(message.getKey());
+        } else {
+            cache.clear();
+        }
+    }
+}
+
+/**
+ * 本实例的缓存，失效时通知其他实例
+ */
+class ClusterCache implements Cache {
+
+    private final Cache target;
+    private final ObjectProvider<ClusterBus> bus;
+
+    ClusterCache(Cache target, ObjectProvider<ClusterBus> bus) {
+        this.target = target;
+        this.bus = bus;
+    }
+
+    Cache getTarget() {
+        return target;
+    }
+
+    @Override
+    public String getName() {
+        return target.getName();
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return target.getNativeCache();
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        return target.get(key);
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> type) {
+        return target.get(key, type);
+    }
+
+    @Override
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        return target.get(key, valueLoader);
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        target.put(key, value);
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        return target.putIfAbsent(key, value);
+    }
+
+    /**
+     * 不能序列化的键无法发送，改为清空其他实例的整个缓存
+     */
+    @Override
+    public void evict(Object key) {
+        target.evict(key);
+        bus.getObject().publishAfterCommit(key instanceof Serializable
+                ? ClusterMessage.evict(getName(), key) : ClusterMessage.clear(getName()));
+    }
+
+    @Override
+    public void clear() {
+        target.clear();
+        bus.getObject().publishAfterCommit(ClusterMessage.clear(getName()));
+    }
+}
+
+/**
+ * 把 CacheManager 包装为 {@link ClusterCacheManager}（内层是 {@link EntityCacheManager}）
+ */
+@Component
+class ClusterCacheManagerInstaller implements BeanPostProcessor {
+
+    private final ObjectProvider<ClusterBus> bus;
+
+    ClusterCacheManagerInstaller(ObjectProvider<ClusterBus> bus) {
+        this.bus = bus;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof CacheManager && !(bean instanceof ClusterCacheManager)) {
+            return new ClusterCacheManager(new EntityCacheManager((CacheManager) bean), bus);
+        }
+        return bean;
+    }
+}
+
+/**
+ * 包装之后缓存指标（cache.gets 等）仍按被包装的 Caffeine 缓存统计
+ */
+@Component
+class ClusterCacheMeterBinderProvider implements CacheMeterBinderProvider<ClusterCache> {
+
+    private final CaffeineCacheMeterBinderProvider caffeine = new CaffeineCacheMeterBinderProvider();
+
+    @Override
+    public MeterBinder getMeterBinder(ClusterCache cache, Iterable<Tag> tags) {
+        Cache target = EntityCacheManager.unwrap(cache.getTarget());
+        return target instanceof CaffeineCache ? caffeine.getMeterBinder((CaffeineCache) target, tags) : null;
+    }
+}
+
+/**
+ * 处理其他实例发来的消息：清除缓存；用户变化时从数据库重新读取，更新搜索索引和登录账号过滤器，并唤醒变化流的长轮询。
+ * <p>
+ * 消息不保证送达（不重发、不确认），所以每隔 api.cluster.reconcile-interval-ms 按 seq 读取上次核对之后的 user_change，
+ * 把其他实例的变化像收到消息一样再处理一遍，并逐个清除这些用户、角色在本实例的缓存：丢失的消息最多延迟一个周期生效。
+ * 处理是幂等的（重复的新增、删除不会重复计入登录账号过滤器）；本实例自己的变化（origin 为本实例）已在提交时处理，直接跳过。
+ * 上次核对之后的记录已被清理时，从数据库全量重建搜索索引和登录账号过滤器（重建期间查询继续使用原来的索引），并清空缓存
+ */
+@Lazy(false)
+@Component
+class ClusterSync implements DisposableBean {
+
+    /**
+     * 每次核对读取的变化记录数
+     */
+    static final int RECONCILE_BATCH = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(ClusterSync.class);
+
+    private final ClusterBus bus;
+    private final CacheManager cacheManager;
+    private final UserRepository userRepository;
+    private final UserSearchIndex index;
+    private final UserLoginRegistry registry;
+    private final UserChangeFeed feed;
+    private final UserSearchIndexUpdater indexUpdater;
+    private final UserLoginRegistryUpdater registryUpdater;
+    private final long reconcileIntervalMillis;
+
+    /**
+     * 已核对到的 seq
+     */
+    private long reconciled;
+    private final ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-reconcile");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ClusterSync(ClusterBus bus, CacheManager cacheManager, UserRepository userRepository,
+                UserSearchIndex index, UserLoginRegistry registry, UserChangeFeed feed,
+                UserSearchIndexUpdater indexUpdater, UserLoginRegistryUpdater registryUpdater,
+                @Value("${api.cluster.reconcile-interval-ms:30000}") long reconcileIntervalMillis) {
+        this.bus = bus;
+        this.cacheManager = cacheManager;
+        this.userRepository = userRepository;
+        this.index = index;
+        this.registry = registry;
+        this.feed = feed;
+        this.indexUpdater = indexUpdater;
+        this.registryUpdater = registryUpdater;
+        this.reconcileIntervalMillis = reconcileIntervalMillis;
+    }
+
+    @PostConstruct
+    void subscribe() {
+        bus.subscribe(this::receive);
+        // 搜索索引和登录账号过滤器已在启动时从数据库加载
+        reconciled = feed.head();
+        if (reconcileIntervalMillis > 0) {
+            reconciler.scheduleWithFixedDelay(() -> {
+                try {
+                    reconcile();
+                } catch (RuntimeException e) {
+                    logger.warn("Cluster reconciliation failed", e);
+                }
+            }, reconcileIntervalMillis, reconcileIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 本实例的 ID，写入 user_change 的 origin
+     */
+    String nodeId() {
+        return bus.nodeId();
+    }
+
+    /**
+     * 本实例的用户/角色变化已提交，通知其他实例
+     */
+    void entitiesChanged(Collection<UserChange> changes) {
+        bus.publish(message(changes));
+    }
+
+    private static ClusterMessage message(Collection<UserChange> changes) {
+        ClusterMessage message = ClusterMessage.entitiesChanged();
+        for (UserChange change : changes) {
+            if (change.getEntityType() != ChangeEntityType.USER) {
+                continue;
+            }
+            switch (change.getChangeType()) {
+                case CREATED:
+                    message.getCreatedUserIds().add(change.getEntityId());
+                    break;
+                case DELETED:
+                    message.getDeletedUserIds().add(change.getEntityId());
+                    break;
+                default:
+                    message.getUpdatedUserIds().add(change.getEntityId());
+            }
+        }
+        return message;
+    }
+
+    /**
+     * 核对上次之后的变化记录，补上丢失的消息
+     *
+     * @return 核对的变化记录数
+     */
+    synchronized int reconcile() {
+        int count = 0;
+        while (true) {
+            List<UserChange> changes = feed.settled(reconciled, RECONCILE_BATCH);
+            if (changes == null) {
+                long head = feed.head();
+                indexUpdater.rebuild();
+                registryUpdater.rebuild();
+                cacheManager.getCacheNames().forEach(name -> evictLocally(ClusterMessage.clear(name)));
+                logger.warn("Change records after seq {} were pruned, rebuilt search index and login registry", reconciled);
+                reconciled = head;
+                return count;
+            }
+            if (changes.isEmpty()) {
+                return count;
+            }
+            List<UserChange> remote = changes.stream()
+                    .filter(change -> !bus.nodeId().equals(change.getOrigin()))
+                    .collect(Collectors.toList());
+            if (!remote.isEmpty()) {
+                evict(remote);
+            }
+            reconciled = changes.get(changes.size() - 1).getSeq();
+            count += changes.size();
+            if (changes.size() < RECONCILE_BATCH) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * 处理其他实例的变化，逐个清除涉及的用户（按 ID 和修改前后的登录名）和角色的缓存
+     */
+    private void evict(List<UserChange> changes) {
+        ClusterMessage message = message(changes);
+        Set<Long> users = new HashSet<>(message.getCreatedUserIds());
+        users.addAll(message.getUpdatedUserIds());
+        users.addAll(message.getDeletedUserIds());
+        // 修改之前的登录名在更新索引之前读取
+        Set<String> logins = new HashSet<>();
+        users.forEach(id -> addLogin(logins, id));
+        apply(message);
+        users.forEach(id -> addLogin(logins, id));
+
+        users.forEach(id -> evictLocally(ClusterMessage.evict(CacheNames.USERS, id)));
+        logins.forEach(login -> evictLocally(ClusterMessage.evict(CacheNames.USERS_BY_LOGIN, login)));
+        Set<Long> roles = changes.stream().filter(change -> change.getEntityType() == ChangeEntityType.ROLE)
+                .map(UserChange::getEntityId).collect(Collectors.toSet());
+        if (!roles.isEmpty()) {
+            evictLocally(ClusterMessage.evict(CacheNames.ROLES, "all"));
+            roles.forEach(id -> evictLocally(ClusterMessage.evict(CacheNames.ROLES, id)));
+            // 用户缓存中带有角色，与 RoleRepository 修改角色时一样清空
+            evictLocally(ClusterMessage.clear(CacheNames.USERS));
+            evictLocally(ClusterMessage.clear(CacheNames.USERS_BY_LOGIN));
+        }
+    }
+
+    private void addLogin(Set<String> logins, Long id) {
+        String login = index.login(id);
+        if (login != null) {
+            logins.add(login);
+        }
+    }
+
+    private void receive(ClusterMessage message) {
+        if (message.getKind() != ClusterMessage.Kind.ENTITIES_CHANGED) {
+            evictLocally(message);
+            return;
+        }
+        apply(message);
+        feed.signal();
+    }
+
+    /**
+     * 更新搜索索引和登录账号过滤器；重复处理同一变化不会重复计数
+     */
+    private void apply(ClusterMessage message) {
+        Set<Long> changed = new HashSet<>(message.getCreatedUserIds());
+        changed.addAll(message.getUpdatedUserIds());
+        changed.removeAll(message.getDeletedUserIds());
+        if (!changed.isEmpty()) {
+            Map<Long, Object[]> rows = userRepository.findSearchFieldsByIdIn(changed).stream()
+                    .collect(Collectors.toMap(row -> (Long) row[0], row -> row));
+            for (Long id : changed) {
+                Object[] row = rows.get(id);
+                if (row == null) {
+                    // 之后的事务已经删除，删除消息随后到达
+                    continue;
+                }
+                if (index.put(id, (String) row[1], (String) row[2], (String) row[3])) {
+                    registry.add((String) row[1]);
+                }
+            }
+        }
+        for (Long id : message.getDeletedUserIds()) {
+            if (index.remove(id)) {
+                registry.removed();
+            }
+        }
+    }
+
+    private void evictLocally(ClusterMessage message) {
+        if (cacheManager instanceof ClusterCacheManager) {
+            ((ClusterCacheManager) cacheManager).apply(message);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        reconciler.shutdownNow();
+    }
+}
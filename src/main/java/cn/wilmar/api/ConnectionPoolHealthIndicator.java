@@ -0,0 +1,149 @@
+package cn.wilmar.api;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接池状态，见 /actuator/health 的 connectionPool：活动/空闲/总连接数、等待连接的线程数，
+ * 以及获取连接的等待时间和超时次数（来自 hikaricp.connections.* 指标）。
+ * 有线程等待且连接已全部占用时 saturated 为 true
+ */
+@Component
+class ConnectionPoolHealthIndicator extends AbstractHealthIndicator {
+
+    private final DataSource dataSource;
+    private final MeterRegistry meterRegistry;
+
+    ConnectionPoolHealthIndicator(DataSource dataSource, MeterRegistry meterRegistry) {
+        super("Connection pool health check failed");
+        this.dataSource = dataSource;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        if (!(dataSource instanceof HikariDataSource)) {
+            builder.unknown().withDetail("dataSource", dataSource.getClass().getName());
+            return;
+        }
+        HikariDataSource hikari = (HikariDataSource) dataSource;
+        HikariPoolMXBean pool = hikari.getHikariPoolMXBean();
+        if (pool == null) {
+            builder.unknown().withDetail("pool", hikari.getPoolName()).withDetail("started", false);
+            return;
+        }
+        int active = pool.getActiveConnections();
+        int pending = pool.getThreadsAwaitingConnection();
+        builder.up()
+                .withDetail("pool", hikari.getPoolName())
+                .withDetail("active", active)
+                .withDetail("idle", pool.getIdleConnections())
+                .withDetail("total", pool.getTotalConnections())
+                .withDetail("max", hikari.getMaximumPoolSize())
+                .withDetail("pending", pending)
+                .withDetail("saturated", pending > 0 && active >= hikari.getMaximumPoolSize());
+        Timer acquire = meterRegistry.find("hikaricp.connections.acquire").tag("pool", hikari.getPoolName()).timer();
+        if (acquire != null) {
+            builder.withDetail("acquireMeanMs", acquire.mean(TimeUnit.MILLISECONDS))
+                    .withDetail("acquireMaxMs", acquire.max(TimeUnit.MILLISECONDS));
+        }
+        Counter timeouts = meterRegistry.find("hikaricp.connections.timeout").tag("pool", hikari.getPoolName()).counter();
+        if (timeouts != null) {
+            builder.withDetail("timeouts", (long) timeouts.count());
+        }
+    }
+}
+
+/**
+ * 启动时检查连接池和 JDBC 相关的配置：不一致的配置直接启动失败，有风险的配置输出警告
+ */
+@Lazy(false)
+@Component
+class DataSourceSettingsValidator {
+
+    private final Logger logger = LoggerFactory.getLogger(DataSourceSettingsValidator.class);
+
+    private final DataSource dataSource;
+    private final Environment environment;
+
+    DataSourceSettingsValidator(DataSource dataSource, Environment environment) {
+        this.dataSource = dataSource;
+        this.environment = environment;
+    }
+
+    @PostConstruct
+    void validate() {
+        List<String> errors = new ArrayList<>();
+        if (dataSource instanceof HikariDataSource) {
+            validatePool((HikariDataSource) dataSource, errors);
+        }
+        Integer batchSize = intProperty("spring.jpa.properties.hibernate.jdbc.batch_size", errors);
+        if (batchSize != null && (batchSize < 1 || batchSize > 1000)) {
+            errors.add("hibernate.jdbc.batch_size must be between 1 and 1000, was " + batchSize);
+        }
+        if (batchSize != null && batchSize > 1
+                && !environment.getProperty("spring.jpa.properties.hibernate.order_inserts", Boolean.class, false)) {
+            logger.warn("hibernate.jdbc.batch_size is {} but hibernate.order_inserts is off, mixed inserts will not be batched", batchSize);
+        }
+        Integer fetchSize = intProperty("spring.jpa.properties.hibernate.jdbc.fetch_size", errors);
+        if (fetchSize != null && fetchSize < 0) {
+            errors.add("hibernate.jdbc.fetch_size must not be negative, was " + fetchSize);
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("Invalid datasource settings: " + String.join("; ", errors));
+        }
+    }
+
+    private void validatePool(HikariDataSource pool, List<String> errors) {
+        int maximumPoolSize = pool.getMaximumPoolSize();
+        int minimumIdle = pool.getMinimumIdle();
+        if (minimumIdle > maximumPoolSize) {
+            errors.add("spring.datasource.hikari.minimum-idle (" + minimumIdle
+                    + ") must not exceed maximum-pool-size (" + maximumPoolSize + ")");
+        }
+        if (pool.getMaxLifetime() > 0 && pool.getIdleTimeout() >= pool.getMaxLifetime()) {
+            errors.add("spring.datasource.hikari.idle-timeout (" + pool.getIdleTimeout()
+                    + " ms) must be shorter than max-lifetime (" + pool.getMaxLifetime() + " ms)");
+        }
+        if (pool.getLeakDetectionThreshold() > 0 && pool.getLeakDetectionThreshold() < 2000) {
+            errors.add("spring.datasource.hikari.leak-detection-threshold must be 0 (off) or at least 2000 ms, was "
+                    + pool.getLeakDetectionThreshold());
+        }
+        int tomcatThreads = environment.getProperty("server.tomcat.max-threads", Integer.class, 200);
+        if (maximumPoolSize > tomcatThreads) {
+            logger.warn("Connection pool ({}) is larger than the Tomcat thread pool ({}), the extra connections stay idle",
+                    maximumPoolSize, tomcatThreads);
+        }
+        logger.info("Connection pool {}: maximum {} connections, minimum idle {}, connection timeout {} ms",
+                pool.getPoolName(), maximumPoolSize, minimumIdle, pool.getConnectionTimeout());
+    }
+
+    private Integer intProperty(String name, List<String> errors) {
+        String value = environment.getProperty(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            errors.add(name + " must be an integer, was '" + value + "'");
+            return null;
+        }
+    }
+}
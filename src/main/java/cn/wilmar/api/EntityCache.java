@@ -0,0 +1,170 @@
+package cn.wilmar.api;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.cache.transaction.TransactionAwareCacheDecorator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 实体缓存：
+ * <ul>
+ * <li>写入和清除在事务提交之后才执行（{@link TransactionAwareCacheDecorator}），
+ * 避免提交之前其他请求又把旧数据加载进缓存，并在过期之前一直返回旧数据；没有事务时立即执行</li>
+ * <li>缓存中保存 User/Role 的副本，每次读取也返回新的副本，调用方修改返回的对象不会影响缓存</li>
+ * </ul>
+ */
+class EntityCacheManager implements CacheManager {
+
+    private final CacheManager target;
+    private final Map<String, Cache> caches = new ConcurrentHashMap<>();
+
+    EntityCacheManager(CacheManager target) {
+        this.target = target;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        Cache cache = caches.get(name);
+        if (cache == null) {
+            Cache local = target.getCache(name);
+            if (local == null) {
+                return null;
+            }
+            cache = caches.computeIfAbsent(name, key -> new TransactionAwareCacheDecorator(new EntityCache(local)));
+        }
+        return cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return target.getCacheNames();
+    }
+
+    /**
+     * 去掉事务和复制的包装，返回底层的缓存（用于缓存指标）
+     */
+    static Cache unwrap(Cache cache) {
+        if (cache instanceof TransactionAwareCacheDecorator) {
+            cache = ((TransactionAwareCacheDecorator) cache).getTargetCache();
+        }
+        return cache instanceof EntityCache ? ((EntityCache) cache).getTarget() : cache;
+    }
+}
+
+/**
+ * 保存和返回 User/Role（及其集合）副本的缓存
+ */
+class EntityCache implements Cache {
+
+    private final Cache target;
+
+    EntityCache(Cache target) {
+        this.target = target;
+    }
+
+    Cache getTarget() {
+        return target;
+    }
+
+    @Override
+    public String getName() {
+        return target.getName();
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return target.getNativeCache();
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        ValueWrapper wrapper = target.get(key);
+        return wrapper == null ? null : new SimpleValueWrapper(copy(wrapper.get()));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        return (T) copy(target.get(key, type));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        return (T) copy(target.get(key, () -> copy(valueLoader.call())));
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        target.put(key, copy(value));
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        ValueWrapper wrapper = target.putIfAbsent(key, copy(value));
+        return wrapper == null ? null : new SimpleValueWrapper(copy(wrapper.get()));
+    }
+
+    @Override
+    public void evict(Object key) {
+        target.evict(key);
+    }
+
+    @Override
+    public void clear() {
+        target.clear();
+    }
+
+    /**
+     * 复制 User、Role 和它们的集合，其他值（不可变）原样返回
+     */
+    static Object copy(Object value) {
+        if (value instanceof User) {
+            return copy((User) value);
+        }
+        if (value instanceof Role) {
+            return copy((Role) value);
+        }
+        if (value instanceof Collection) {
+            List<Object> copies = new ArrayList<>(((Collection<?>) value).size());
+            ((Collection<?>) value).forEach(item -> copies.add(copy(item)));
+            return copies;
+        }
+        return value;
+    }
+
+    private static User copy(User user) {
+        User copy = new User();
+        copy.setId(user.getId());
+        copy.setName(user.getName());
+        copy.setLogin(user.getLogin());
+        copy.setPassword(user.getPassword());
+        copy.setEmail(user.getEmail());
+        if (user.getRoles() != null) {
+            Set<Role> roles = new HashSet<>();
+            user.getRoles().forEach(role -> roles.add(copy(role)));
+            copy.setRoles(roles);
+        }
+        copy.setVersion(user.getVersion());
+        copy.setCreateDate(user.getCreateDate());
+        copy.setCreatedBy(user.getCreatedBy());
+        copy.setLastModifiedDate(user.getLastModifiedDate());
+        copy.setLastModifiedBy(user.getLastModifiedBy());
+        return copy;
+    }
+
+    private static Role copy(Role role) {
+        Role copy = new Role(role.getName(), role.getCode());
+        copy.setId(role.getId());
+        return copy;
+    }
+}
@@ -0,0 +1,419 @@
+package cn.wilmar.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.env.Environment;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个 API 请求的统计：SQL 语句数、加载的实体数、调用的仓库方法。
+ * 绑定在处理请求的线程上，异步模式下由 {@link ApiExecutor} 传递给工作线程
+ */
+final class RequestStats {
+
+    private static final ThreadLocal<RequestStats> CURRENT = new ThreadLocal<>();
+
+    final long startNanos = System.nanoTime();
+    /**
+     * 是否记录本次请求的 SQL 日志，按请求而不是按语句采样，便于看到一个请求的完整 SQL
+     */
+    final boolean sqlLogged;
+    final AtomicInteger statements = new AtomicInteger();
+    final AtomicInteger entitiesLoaded = new AtomicInteger();
+    private final Map<String, Integer> repositoryCalls = new LinkedHashMap<>();
+    volatile String endpoint;
+
+    private RequestStats(boolean sqlLogged) {
+        this.sqlLogged = sqlLogged;
+    }
+
+    static RequestStats start(double sqlLogSampleRate) {
+        return new RequestStats(sample(sqlLogSampleRate));
+    }
+
+    static boolean sample(double rate) {
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * @return 当前线程上的请求统计，不在 API 请求中时为 null
+     */
+    static RequestStats current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 绑定到当前线程
+     *
+     * @return 之前绑定的统计，用于恢复
+     */
+    static RequestStats bind(RequestStats stats) {
+        RequestStats previous = CURRENT.get();
+        if (stats == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(stats);
+        }
+        return previous;
+    }
+
+    synchronized void repositoryCall(String method) {
+        repositoryCalls.merge(method, 1, Integer::sum);
+    }
+
+    synchronized Map<String, Integer> repositoryCalls() {
+        return new LinkedHashMap<>(repositoryCalls);
+    }
+}
+
+/**
+ * 记录 /api/** 每个接口的延迟（p50/p99/p999）、每请求 SQL 语句数、加载的实体数和调用的仓库方法，
+ * 指标名为 api.request*，汇总见 {@link ApiStatsEndpoint}
+ */
+@Component
+class RequestStatsFilter extends OncePerRequestFilter {
+
+    static final String LATENCY = "api.request";
+    static final String STATEMENTS = "api.request.sql.statements";
+    static final String ENTITIES = "api.request.entities.loaded";
+    static final String REPOSITORY_CALLS = "api.request.repository.calls";
+    static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+    static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    private final MeterRegistry meterRegistry;
+    private final double sqlLogSampleRate;
+    /**
+     * 接口 -> 指标，避免每个请求重新构建和查找
+     */
+    private final Map<String, EndpointMeters> meters = new ConcurrentHashMap<>();
+
+    RequestStatsFilter(MeterRegistry meterRegistry, @Value("${api.sql.log.sample-rate:0}") double sqlLogSampleRate) {
+        this.meterRegistry = meterRegistry;
+        this.sqlLogSampleRate = sqlLogSampleRate;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith(request.getContextPath() + "/api/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        RequestStats stats = RequestStats.start(sqlLogSampleRate);
+        stats.endpoint = request.getMethod() + " " + request.getRequestURI();
+        RequestStats previous = RequestStats.bind(stats);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            RequestStats.bind(previous);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new CompletionListener(request, stats));
+            } else {
+                record(request, stats);
+            }
+        }
+    }
+
+    private void record(HttpServletRequest request, RequestStats stats) {
+        EndpointMeters endpoint = meters.computeIfAbsent(endpoint(request), EndpointMeters::new);
+        endpoint.latency.record(System.nanoTime() - stats.startNanos, TimeUnit.NANOSECONDS);
+        endpoint.statements.record(stats.statements.get());
+        endpoint.entities.record(stats.entitiesLoaded.get());
+        stats.repositoryCalls().forEach((method, count) -> endpoint.repositoryCalls(method).increment(count));
+    }
+
+    /**
+     * 使用路由模板（如 /api/users/{id}）而不是实际路径，避免指标数量随 ID 增长
+     */
+    private static String endpoint(HttpServletRequest request) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return request.getMethod() + " " + (pattern == null ? "UNKNOWN" : pattern);
+    }
+
+    private final class EndpointMeters {
+        final String endpoint;
+        final Timer latency;
+        final DistributionSummary statements;
+        final DistributionSummary entities;
+        final Map<String, Counter> repositoryCalls = new ConcurrentHashMap<>();
+
+        EndpointMeters(String endpoint) {
+            this.endpoint = endpoint;
+            this.latency = Timer.builder(LATENCY).tag("endpoint", endpoint)
+                    .publishPercentiles(PERCENTILES).publishPercentileHistogram()
+                    .register(meterRegistry);
+            this.statements = DistributionSummary.builder(STATEMENTS).tag("endpoint", endpoint).register(meterRegistry);
+            this.entities = DistributionSummary.builder(ENTITIES).tag("endpoint", endpoint).register(meterRegistry);
+        }
+
+        Counter repositoryCalls(String method) {
+            return repositoryCalls.computeIfAbsent(method, m ->
+                    Counter.builder(REPOSITORY_CALLS).tags("endpoint", endpoint, "method", m).register(meterRegistry));
+        }
+    }
+
+    private final class CompletionListener implements AsyncListener {
+        private final HttpServletRequest request;
+        private final RequestStats stats;
+
+        CompletionListener(HttpServletRequest request, RequestStats stats) {
+            this.request = request;
+            this.stats = stats;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            record(request, stats);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
+
+/**
+ * 统计每个请求执行的 SQL 语句，并按 api.sql.log.sample-rate 采样输出结构化的 SQL 日志（代替 show-sql）。
+ * 日志名为 cn.wilmar.api.sql，格式为 key=value
+ */
+class SqlStatementInspector implements StatementInspector {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger SQL_LOGGER = LoggerFactory.getLogger("cn.wilmar.api.sql");
+
+    private final double sampleRate;
+
+    SqlStatementInspector(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public String inspect(String sql) {
+        RequestStats stats = RequestStats.current();
+        if (stats == null) {
+            if (RequestStats.sample(sampleRate) && SQL_LOGGER.isInfoEnabled()) {
+                SQL_LOGGER.info("endpoint=none thread=\"{}\" sql=\"{}\"", Thread.currentThread().getName(), escape(sql));
+            }
+            return sql;
+        }
+        int statement = stats.statements.incrementAndGet();
+        if (stats.sqlLogged && SQL_LOGGER.isInfoEnabled()) {
+            SQL_LOGGER.info("endpoint=\"{}\" statement={} elapsedMs={} sql=\"{}\"", stats.endpoint, statement,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stats.startNanos), escape(sql));
+        }
+        return sql;
+    }
+
+    private static String escape(String sql) {
+        return sql.replace("\"", "\\\"").replace('\n', ' ');
+    }
+}
+
+/**
+ * 统计每个请求从结果集加载的实体数
+ */
+class EntityLoadInterceptor extends EmptyInterceptor {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        RequestStats stats = RequestStats.current();
+        if (stats != null) {
+            stats.entitiesLoaded.incrementAndGet();
+        }
+        return false;
+    }
+}
+
+/**
+ * 在 EntityManagerFactory 初始化之前注册 {@link SqlStatementInspector} 和 {@link EntityLoadInterceptor}
+ * （Spring Boot 2.0 没有 HibernatePropertiesCustomizer）
+ */
+@Component
+class HibernateInstrumentationPostProcessor implements BeanPostProcessor {
+
+    private final Environment environment;
+
+    HibernateInstrumentationPostProcessor(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        if (bean instanceof LocalContainerEntityManagerFactoryBean) {
+            Map<String, Object> properties = ((LocalContainerEntityManagerFactoryBean) bean).getJpaPropertyMap();
+            properties.put(AvailableSettings.STATEMENT_INSPECTOR,
+                    new SqlStatementInspector(environment.getProperty("api.sql.log.sample-rate", Double.class, 0.0)));
+            properties.put(AvailableSettings.INTERCEPTOR, new EntityLoadInterceptor());
+        }
+        return bean;
+    }
+}
+
+/**
+ * 记录仓库方法的调用：指标 api.repository.invocations，以及当前请求调用了哪些仓库方法。
+ * 在缓存之外执行，缓存命中也会被记录
+ */
+@Aspect
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@Component
+class RepositoryInvocationAspect {
+
+    static final String INVOCATIONS = "api.repository.invocations";
+
+    private final MeterRegistry meterRegistry;
+    /**
+     * 仓库代理类 -> 方法 -> 名称和指标。继承的方法（如 CrudRepository.count）在各仓库中是同一个 Method，所以先按代理类区分
+     */
+    private final Map<Class<?>, Map<Method, RepositoryMethod>> methods = new ConcurrentHashMap<>();
+
+    RepositoryInvocationAspect(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Around("target(org.springframework.data.repository.Repository)")
+    public Object record(ProceedingJoinPoint joinPoint) throws Throwable {
+        Object target = joinPoint.getTarget();
+        RepositoryMethod method = methods.computeIfAbsent(target.getClass(), type -> new ConcurrentHashMap<>())
+                .computeIfAbsent(((MethodSignature) joinPoint.getSignature()).getMethod(), m -> new RepositoryMethod(
+                        AopProxyUtils.proxiedUserInterfaces(target)[0].getSimpleName() + "." + m.getName()));
+        RequestStats stats = RequestStats.current();
+        if (stats != null) {
+            stats.repositoryCall(method.name);
+        }
+        long start = System.nanoTime();
+        Timer timer = method.succeeded;
+        try {
+            return joinPoint.proceed();
+        } catch (Throwable e) {
+            timer = method.failed(e.getClass().getSimpleName());
+            throw e;
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final class RepositoryMethod {
+        final String name;
+        final Timer succeeded;
+        final Map<String, Timer> failed = new ConcurrentHashMap<>();
+
+        RepositoryMethod(String name) {
+            this.name = name;
+            this.succeeded = timer("None");
+        }
+
+        Timer failed(String exception) {
+            return failed.computeIfAbsent(exception, this::timer);
+        }
+
+        private Timer timer(String exception) {
+            return Timer.builder(INVOCATIONS).tags("method", name, "exception", exception).register(meterRegistry);
+        }
+    }
+}
+
+/**
+ * 按接口汇总请求统计：/actuator/apistats
+ */
+@Component
+@Endpoint(id = "apistats")
+class ApiStatsEndpoint {
+
+    private final MeterRegistry meterRegistry;
+
+    ApiStatsEndpoint(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @ReadOperation
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new TreeMap<>();
+        for (Timer timer : meterRegistry.find(RequestStatsFilter.LATENCY).timers()) {
+            String endpoint = timer.getId().getTag("endpoint");
+            Map<String, Object> stats = new LinkedHashMap<>();
+            HistogramSnapshot snapshot = timer.takeSnapshot();
+            stats.put("count", snapshot.count());
+            Map<String, Object> latency = new LinkedHashMap<>();
+            ValueAtPercentile[] percentiles = snapshot.percentileValues();
+            for (int i = 0; i < percentiles.length; i++) {
+                latency.put(RequestStatsFilter.PERCENTILE_NAMES[i], percentiles[i].value(TimeUnit.MILLISECONDS));
+            }
+            latency.put("mean", snapshot.mean(TimeUnit.MILLISECONDS));
+            latency.put("max", snapshot.max(TimeUnit.MILLISECONDS));
+            stats.put("latencyMs", latency);
+            stats.put("sqlStatements", summary(RequestStatsFilter.STATEMENTS, endpoint));
+            stats.put("entitiesLoaded", summary(RequestStatsFilter.ENTITIES, endpoint));
+            Map<String, Object> calls = new TreeMap<>();
+            meterRegistry.find(RequestStatsFilter.REPOSITORY_CALLS).tag("endpoint", endpoint).counters()
+                    .forEach(counter -> calls.put(counter.getId().getTag("method"), (long) counter.count()));
+            stats.put("repositoryCalls", calls);
+            result.put(endpoint, stats);
+        }
+        return result;
+    }
+
+    private Map<String, Object> summary(String name, String endpoint) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        DistributionSummary meter = meterRegistry.find(name).tag("endpoint", endpoint).summary();
+        if (meter != null) {
+            summary.put("mean", meter.mean());
+            summary.put("max", meter.max());
+            summary.put("total", (long) meter.totalAmount());
+        }
+        return summary;
+    }
+}
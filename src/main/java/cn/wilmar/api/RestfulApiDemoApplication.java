@@ -7,45 +7,85 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import org.hibernate.annotations.BatchSize;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.annotation.Caching;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.annotation.CreatedBy;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedBy;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.domain.AuditorAware;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.web.PageableDefault;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import springfox.documentation.swagger.web.ApiKeyVehicle;
 
 import javax.persistence.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -53,6 +93,7 @@ import java.util.stream.Stream;
  */
 @EnableSwagger2Doc
 @EnableJpaAuditing // 开启 JPA 审计功能
+@EnableCaching // 开启缓存，见 CacheNames
 @SpringBootApplication
 public class RestfulApiDemoApplication {
 
@@ -72,7 +113,9 @@ public class RestfulApiDemoApplication {
 @EntityListeners(AuditingEntityListener.class)
 @Entity
 class User {
-    @Id @GeneratedValue(strategy = GenerationType.IDENTITY) @ApiModelProperty(value = "用户 ID", example = "1")
+    // 使用序列（pooled 优化器）而不是自增列，Hibernate 才能批量插入
+    @Id @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_seq") @ApiModelProperty(value = "用户 ID", example = "1")
+    @SequenceGenerator(name = "user_seq", sequenceName = "user_seq", allocationSize = 50)
     Long id;
     @NonNull @NotNull @ApiModelProperty(value = "用户姓名", example = "Yin Guo Wei")
     String name;
@@ -83,9 +126,15 @@ class User {
     @NonNull @ApiModelProperty(value = "邮箱", example = "yinguowei@cn.wilmar-intl.com")
     String email;
 
-    @ManyToMany(fetch = FetchType.EAGER) @ApiModelProperty(value = "用户的角色", dataType = "Role")
+    // 角色按需加载：列表查询通过 @EntityGraph 一次取回，其余场景按批次加载，避免 N+1 查询
+    @ManyToMany(fetch = FetchType.LAZY) @BatchSize(size = 100) @ApiModelProperty(value = "用户的角色", dataType = "Role")
     Set<Role> roles = new HashSet<>();
 
+    // 乐观锁版本号，每次更新（包括角色变化）加一，同时作为 ETag
+    @Version @JsonIgnore
+    @Column(nullable = false)
+    Long version;
+
     @CreatedDate @JsonIgnore
     @Column(name = "created_date", nullable = false, updatable = false)
     LocalDateTime createDate; // 审计字段：创建时间
@@ -107,7 +156,9 @@ class User {
 @ApiModel(description = "数据库角色对象")
 @Entity
 class Role {
-    @Id @GeneratedValue(strategy = GenerationType.IDENTITY) @ApiModelProperty(value = "角色 ID", example = "1")
+    // 与 User 相同使用 pooled 序列：每个实例一次预留 allocationSize 个 ID，多实例共用数据库时 ID 不冲突，插入也不必先取 ID
+    @Id @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "role_seq") @ApiModelProperty(value = "角色 ID", example = "1")
+    @SequenceGenerator(name = "role_seq", sequenceName = "role_seq", allocationSize = 20)
     Long id;
     @NonNull @NotNull @ApiModelProperty(value = "角色名称", example = "Administrator")
     String name;
@@ -144,17 +195,93 @@ class DefaultAuditorAware implements AuditorAware<String> {
     }
 }
 
+/**
+ * 缓存名称，大小和过期时间见 spring.cache.caffeine.spec；写入和清除在事务提交后执行，见 {@link EntityCacheManager}
+ */
+final class CacheNames {
+    /**
+     * 用户 ID -> User
+     */
+    static final String USERS = "users";
+    /**
+     * 登录账号 -> User
+     */
+    static final String USERS_BY_LOGIN = "usersByLogin";
+    /**
+     * 角色 ID -> Role，以及 'all' -> 全部角色
+     */
+    static final String ROLES = "roles";
+
+    private CacheNames() {
+    }
+}
+
 /**
  * User 对象资源管理对象（DTO）
  */
-interface UserRepository extends JpaRepository<User, Long> {
+interface UserRepository extends JpaRepository<User, Long>, UserFieldsRepository {
     /**
      * 根据登录账号查询用户
      *
      * @return User Optional 对象
      */
+    @EntityGraph(attributePaths = "roles")
+    @Cacheable(cacheNames = CacheNames.USERS_BY_LOGIN, key = "#p0")
     Optional<User> getUserByLogin(String login);
 
+    /**
+     * 根据 ID 查询用户，同时加载角色。结果会被缓存，返回的是缓存的副本
+     */
+    @Override
+    @EntityGraph(attributePaths = "roles")
+    @Cacheable(cacheNames = CacheNames.USERS, key = "#p0")
+    Optional<User> findById(Long id);
+
+    /**
+     * 根据 ID 查询用户，不经过缓存，用于修改用户之前读取最新数据
+     */
+    @EntityGraph(attributePaths = "roles")
+    Optional<User> findUncachedById(Long id);
+
+    @Override
+    @Caching(evict = {
+            @CacheEvict(cacheNames = CacheNames.USERS, key = "#result.id"),
+            @CacheEvict(cacheNames = CacheNames.USERS_BY_LOGIN, key = "#result.login")
+    })
+    <S extends User> S save(S user);
+
+    @Override
+    @CacheEvict(cacheNames = {CacheNames.USERS, CacheNames.USERS_BY_LOGIN}, allEntries = true)
+    <S extends User> List<S> saveAll(Iterable<S> users);
+
+    @Override
+    @Caching(evict = {
+            @CacheEvict(cacheNames = CacheNames.USERS, key = "#p0.id"),
+            @CacheEvict(cacheNames = CacheNames.USERS_BY_LOGIN, key = "#p0.login")
+    })
+    void delete(User user);
+
+    @Override
+    @Caching(evict = {
+            @CacheEvict(cacheNames = CacheNames.USERS, key = "#p0"),
+            @CacheEvict(cacheNames = CacheNames.USERS_BY_LOGIN, allEntries = true)
+    })
+    void deleteById(Long id);
+
+    /**
+     * 查询所有用户，同时加载角色
+     */
+    @Override
+    @EntityGraph(attributePaths = "roles")
+    List<User> findAll();
+
+    /**
+     * 根据 ID 列表查询用户，同时加载角色
+     */
+    @Override
+    @EntityGraph(attributePaths = "roles")
+    List<User> findAllById(Iterable<Long> ids);
+
     /**
      * 根据多个条件查询用户
      *
@@ -165,29 +292,270 @@ interface UserRepository extends JpaRepository<User, Long> {
     Page<User> findByLoginLikeIgnoreCaseOrNameLikeIgnoreCaseOrEmailLikeIgnoreCase(Pageable pageable, String login, String name, String email);
 
     /**
-     * 根据关键字查询用户
+     * 根据关键字查询用户 ID
      *
      * @param pageable 用户指定的分页信息
      * @param keyword  查询关键字
-     * @return 返回 Page 对象包含用户集合和分页信息
+     * @return 返回 Page 对象包含用户 ID 集合和分页信息
+     */
+    default Page<Long> findIdsByKeyword(Pageable pageable, String keyword) {
+        return findIdsByEscapedKeyword(pageable, escapeLike(keyword));
+    }
+
+    /**
+     * @param escapedKeyword 经 {@link #escapeLike(String)} 转义的关键字
+     * @see #findIdsByKeyword(Pageable, String)
      */
     // use % and ignore case: %?1% or %:keyword% (need @Param) or CONCAT()
-    @Query("SELECT u FROM User u WHERE LOWER(u.login) LIKE LOWER(CONCAT('%',?1,'%')) OR LOWER(u.name) LIKE LOWER(CONCAT('%',?1,'%')) OR LOWER(u.email) LIKE LOWER(CONCAT('%',?1,'%'))")
-    Page<User> findByKeyword(Pageable pageable, String keyword);
+    @Query("SELECT u.id FROM User u WHERE LOWER(u.login) LIKE LOWER(CONCAT('%',?1,'%')) ESCAPE '\\' OR LOWER(u.name) LIKE LOWER(CONCAT('%',?1,'%')) ESCAPE '\\' OR LOWER(u.email) LIKE LOWER(CONCAT('%',?1,'%')) ESCAPE '\\'")
+    Page<Long> findIdsByEscapedKeyword(Pageable pageable, String escapedKeyword);
+
+    /**
+     * 转义 LIKE 的通配符 %、_ 和转义符 \，关键字按字面匹配，与 {@link UserSearchIndex} 的结果一致
+     */
+    static String escapeLike(String keyword) {
+        return keyword.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * 根据关键字查询用户。先分页查询 ID，再连同角色一次加载（集合 fetch join 不能直接分页）
+     *
+     * @param pageable 用户指定的分页信息
+     * @param keyword  查询关键字
+     * @return 返回 Page 对象包含用户集合和分页信息
+     */
+    default Page<User> findByKeyword(Pageable pageable, String keyword) {
+        Page<Long> ids = findIdsByKeyword(pageable, keyword);
+        return new PageImpl<>(findAllByIdInOrder(ids.getContent()), pageable, ids.getTotalElements());
+    }
+
+    /**
+     * 根据关键字游标（keyset）分页查询用户 ID，按 ID 升序，不执行 count 查询
+     *
+     * @param afterId  上一页最后一个用户 ID
+     * @param keyword  查询关键字
+     * @param pageable 只使用其中的每页记录数
+     * @return 返回 Slice 对象包含用户 ID 集合和是否有下一页
+     */
+    default Slice<Long> findIdsByKeywordAfter(Long afterId, String keyword, Pageable pageable) {
+        return findIdsByEscapedKeywordAfter(afterId, escapeLike(keyword), pageable);
+    }
+
+    /**
+     * @param escapedKeyword 经 {@link #escapeLike(String)} 转义的关键字
+     * @see #findIdsByKeywordAfter(Long, String, Pageable)
+     */
+    @Query("SELECT u.id FROM User u WHERE u.id > ?1 AND (LOWER(u.login) LIKE LOWER(CONCAT('%',?2,'%')) ESCAPE '\\' OR LOWER(u.name) LIKE LOWER(CONCAT('%',?2,'%')) ESCAPE '\\' OR LOWER(u.email) LIKE LOWER(CONCAT('%',?2,'%')) ESCAPE '\\') ORDER BY u.id")
+    Slice<Long> findIdsByEscapedKeywordAfter(Long afterId, String escapedKeyword, Pageable pageable);
+
+    /**
+     * 根据关键字游标（keyset）分页查询用户，同时加载角色
+     *
+     * @see #findIdsByKeywordAfter(Long, String, Pageable)
+     */
+    default Slice<User> findByKeywordAfter(Long afterId, String keyword, Pageable pageable) {
+        Slice<Long> ids = findIdsByKeywordAfter(afterId, keyword, pageable);
+        return new SliceImpl<>(findAllByIdInOrder(ids.getContent()), pageable, ids.hasNext());
+    }
+
+    /**
+     * 以游标方式按 ID 顺序读取所有用户，用于导出，需要在事务中使用并关闭 Stream
+     *
+     * @return 每行依次为 id、login、name、email、角色 id（用户有多个角色时有多行，没有角色时为 null）
+     */
+    @QueryHints(@QueryHint(name = org.hibernate.annotations.QueryHints.FETCH_SIZE, value = "500"))
+    @Query("SELECT u.id, u.login, u.name, u.email, r.id FROM User u LEFT JOIN u.roles r ORDER BY u.id")
+    Stream<Object[]> streamExportRows();
+
+    /**
+     * 以游标方式按 ID 顺序读取匹配关键字的用户，用于导出
+     *
+     * @see #streamExportRows()
+     */
+    default Stream<Object[]> streamExportRowsByKeyword(String keyword) {
+        return streamExportRowsByEscapedKeyword(escapeLike(keyword));
+    }
+
+    /**
+     * @param escapedKeyword 经 {@link #escapeLike(String)} 转义的关键字
+     * @see #streamExportRowsByKeyword(String)
+     */
+    @QueryHints(@QueryHint(name = org.hibernate.annotations.QueryHints.FETCH_SIZE, value = "500"))
+    @Query("SELECT u.id, u.login, u.name, u.email, r.id FROM User u LEFT JOIN u.roles r WHERE LOWER(u.login) LIKE LOWER(CONCAT('%',?1,'%')) ESCAPE '\\' OR LOWER(u.name) LIKE LOWER(CONCAT('%',?1,'%')) ESCAPE '\\' OR LOWER(u.email) LIKE LOWER(CONCAT('%',?1,'%')) ESCAPE '\\' ORDER BY u.id")
+    Stream<Object[]> streamExportRowsByEscapedKeyword(String escapedKeyword);
+
+    /**
+     * 根据 ID 列表查询用户的公开字段和角色 ID，用于构造 {@link UserView}，不加载实体
+     *
+     * @return 每行依次为 id、login、name、email、角色 id（用户有多个角色时有多行，没有角色时为 null）
+     */
+    @Query("SELECT u.id, u.login, u.name, u.email, r.id FROM User u LEFT JOIN u.roles r WHERE u.id IN ?1")
+    List<Object[]> findViewRowsByIdIn(Collection<Long> ids);
+
+    /**
+     * 查询已经存在的登录账号，用于批量导入时检查冲突
+     *
+     * @param logins 待检查的登录账号
+     * @return 其中已经存在的登录账号
+     */
+    @Query("SELECT u.login FROM User u WHERE u.login IN ?1")
+    List<String> findExistingLogins(Collection<String> logins);
+
+    /**
+     * 登录账号是否已经存在，不加载用户，不经过缓存
+     */
+    boolean existsByLogin(String login);
+
+    /**
+     * 流式读取全部登录账号，用于重建 {@link UserLoginRegistry}，需要在事务中调用并关闭 Stream
+     */
+    @QueryHints(@QueryHint(name = org.hibernate.annotations.QueryHints.FETCH_SIZE, value = "1000"))
+    @Query("SELECT u.login FROM User u")
+    Stream<String> streamAllLogins();
+
+    /**
+     * 查询已经存在的用户 ID，并按 ID 顺序锁定这些用户（SELECT ... FOR UPDATE），直到事务结束。
+     * 并发修改同一用户角色的事务因此依次执行，之后的条件判断能看到前一个事务提交的 user_roles
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT u.id FROM User u WHERE u.id IN ?1 ORDER BY u.id")
+    List<Long> lockExistingIds(Collection<Long> ids);
+
+    /**
+     * 缺少任一指定角色的用户，即授予角色之后将发生变化的用户
+     *
+     * @return 每行依次为 id、login（用于清除缓存）
+     */
+    @Query(nativeQuery = true, value = "SELECT u.id, u.login FROM user u WHERE u.id IN (?1) AND EXISTS (SELECT 1 FROM role r WHERE r.id IN (?2) "
+            + "AND NOT EXISTS (SELECT 1 FROM user_roles ur WHERE ur.user_id = u.id AND ur.roles_id = r.id)) ORDER BY u.id")
+    List<Object[]> findUsersMissingRoles(Collection<Long> userIds, Collection<Long> roleIds);
+
+    /**
+     * 拥有任一指定角色的用户，即撤销角色之后将发生变化的用户
+     *
+     * @return 每行依次为 id、login（用于清除缓存）
+     */
+    @Query(nativeQuery = true, value = "SELECT u.id, u.login FROM user u WHERE u.id IN (?1) "
+            + "AND EXISTS (SELECT 1 FROM user_roles ur WHERE ur.user_id = u.id AND ur.roles_id IN (?2)) ORDER BY u.id")
+    List<Object[]> findUsersHavingRoles(Collection<Long> userIds, Collection<Long> roleIds);
+
+    /**
+     * 用户版本号加一（ETag 随之变化），用于不经过 Hibernate 的角色修改；由调用方清除这些用户的缓存
+     *
+     * @return 更新的用户数
+     */
+    @Modifying(clearAutomatically = true)
+    @Query(nativeQuery = true, value = "UPDATE user u SET version = version + 1, last_modified_date = ?2, last_modified_by = ?3 WHERE u.id IN (?1)")
+    int touchUsers(Collection<Long> userIds, LocalDateTime now, String auditor);
+
+    /**
+     * 给用户授予角色，已有的不重复插入；由调用方清除发生变化的用户的缓存
+     *
+     * @return 插入的 user_roles 行数
+     */
+    @Modifying(clearAutomatically = true)
+    @Query(nativeQuery = true, value = "INSERT INTO user_roles (user_id, roles_id) SELECT u.id, r.id FROM user u CROSS JOIN role r "
+            + "WHERE u.id IN (?1) AND r.id IN (?2) "
+            + "AND NOT EXISTS (SELECT 1 FROM user_roles ur WHERE ur.user_id = u.id AND ur.roles_id = r.id)")
+    int insertUserRoles(Collection<Long> userIds, Collection<Long> roleIds);
+
+    /**
+     * 查询将被授予的（用户 ID, 角色 ID），在 {@link #insertUserRoles} 之前调用，用于审计日志
+     */
+    @Query(nativeQuery = true, value = "SELECT u.id AS user_id, r.id AS roles_id FROM user u CROSS JOIN role r WHERE u.id IN (?1) AND r.id IN (?2) "
+            + "AND NOT EXISTS (SELECT 1 FROM user_roles ur WHERE ur.user_id = u.id AND ur.roles_id = r.id)")
+    List<Object[]> findMissingUserRoles(Collection<Long> userIds, Collection<Long> roleIds);
+
+    /**
+     * 查询并锁定将被撤销的（用户 ID, 角色 ID），在 {@link #deleteUserRoles} 之前调用，用于审计日志；
+     * 锁定之后其他事务不能删除这些行，删除语句修改的正是这些行
+     */
+    @Query(nativeQuery = true, value = "SELECT user_id, roles_id FROM user_roles WHERE user_id IN (?1) AND roles_id IN (?2) FOR UPDATE")
+    List<Object[]> lockUserRoles(Collection<Long> userIds, Collection<Long> roleIds);
+
+    /**
+     * 撤销用户的角色；由调用方清除发生变化的用户的缓存
+     *
+     * @return 删除的 user_roles 行数
+     */
+    @Modifying(clearAutomatically = true)
+    @Query(nativeQuery = true, value = "DELETE FROM user_roles WHERE user_id IN (?1) AND roles_id IN (?2)")
+    int deleteUserRoles(Collection<Long> userIds, Collection<Long> roleIds);
+
+    /**
+     * 流式读取所有用户的搜索字段，用于重建关键字索引，需要在事务中调用并关闭 Stream
+     *
+     * @return 每行依次为 id、login、name、email
+     */
+    @QueryHints(@QueryHint(name = org.hibernate.annotations.QueryHints.FETCH_SIZE, value = "1000"))
+    @Query("SELECT u.id, u.login, u.name, u.email FROM User u")
+    Stream<Object[]> streamAllSearchFields();
+
+    /**
+     * 查询指定用户的搜索字段，用于同步其他实例的变化
+     *
+     * @return 每行依次为 id、login、name、email，不存在的 ID 被忽略
+     */
+    @Query("SELECT u.id, u.login, u.name, u.email FROM User u WHERE u.id IN ?1")
+    List<Object[]> findSearchFieldsByIdIn(Collection<Long> ids);
+
+    /**
+     * 根据 ID 列表查询用户，并保持 ID 列表的顺序
+     *
+     * @param ids 用户 ID 列表
+     * @return 用户集合，不存在的 ID 被忽略
+     */
+    default List<User> findAllByIdInOrder(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, User> users = findAllById(ids).stream().collect(Collectors.toMap(User::getId, Function.identity()));
+        return ids.stream().map(users::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
 }
 
 /**
  * Role 对象资源管理对象（DTO）
  */
 interface RoleRepository extends CrudRepository<Role, Long> {
+
+    @Override
+    @Cacheable(cacheNames = CacheNames.ROLES, key = "'all'")
+    Iterable<Role> findAll();
+
+    @Override
+    @Cacheable(cacheNames = CacheNames.ROLES, key = "#p0")
+    Optional<Role> findById(Long id);
+
+    /**
+     * 角色变化时用户缓存中的角色也会过期，一并清空
+     */
+    @Override
+    @CacheEvict(cacheNames = {CacheNames.ROLES, CacheNames.USERS, CacheNames.USERS_BY_LOGIN}, allEntries = true)
+    <S extends Role> S save(S role);
+
+    @Override
+    @CacheEvict(cacheNames = {CacheNames.ROLES, CacheNames.USERS, CacheNames.USERS_BY_LOGIN}, allEntries = true)
+    <S extends Role> Iterable<S> saveAll(Iterable<S> roles);
+
+    @Override
+    @CacheEvict(cacheNames = {CacheNames.ROLES, CacheNames.USERS, CacheNames.USERS_BY_LOGIN}, allEntries = true)
+    void delete(Role role);
+
+    @Override
+    @CacheEvict(cacheNames = {CacheNames.ROLES, CacheNames.USERS, CacheNames.USERS_BY_LOGIN}, allEntries = true)
+    void deleteById(Long id);
 }
 
 /**
- * 测试数据初始化工具
+ * 测试数据初始化工具：api.seed.enabled=false 时不加载；api.seed.async=true 时在应用就绪后由后台线程加载，
+ * 不占用启动时间（加载完成前 /api/users 返回空列表），容器关闭时等待加载结束，不在关闭中途访问数据源
  */
 @Component
 class InitDataLoader implements CommandLineRunner {
 
+    private final Logger logger = LoggerFactory.getLogger(InitDataLoader.class);
+
     /**
      * 角色：Admin、User
      */
@@ -196,36 +564,83 @@ class InitDataLoader implements CommandLineRunner {
 
     private final UserRepository userRepository;
     private final RoleRepository roleRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectProvider<StartupTimeline> timeline;
+    private final ConfigurableApplicationContext context;
+    private final boolean enabled;
+    private final boolean async;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "seed-data");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    InitDataLoader(UserRepository userRepository, RoleRepository roleRepository) {
+    InitDataLoader(UserRepository userRepository, RoleRepository roleRepository,
+                   TransactionTemplate transactionTemplate, ObjectProvider<StartupTimeline> timeline,
+                   ConfigurableApplicationContext context,
+                   @Value("${api.seed.enabled:true}") boolean enabled,
+                   @Value("${api.seed.async:false}") boolean async) {
         this.userRepository = userRepository;
         this.roleRepository = roleRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.timeline = timeline;
+        this.context = context;
+        this.enabled = enabled;
+        this.async = async;
     }
 
     @Override
     public void run(String... args) {
-        roleRepository.save(defaultRole);
-        roleRepository.save(adminRole);
-
-        // 测试用户
-        Stream.of("Yin Guo Wei", "Liang Jian", "Wan Jon Yew", "Kwek So Cheer").forEach(
-                name -> userRepository.save(new User(
-                        name,
-                        name.replaceAll(" ", "").toLowerCase(),
-//                        "111111", // TODO: default & encode
-                        name.replaceAll(" ", "").toLowerCase() + "@cn.wilmar-intl.com"
-                ))
-        );
-        // 给用户添加默认角色：Default User
-        List<User> users = userRepository.findAll();
-        for (User user : users) {
-            user.getRoles().add(defaultRole);
-            if (user.getId() == 1) {
-                user.getRoles().add(adminRole); // ID 为 1 的用户设置为超级管理员
+        if (!enabled) {
+            return;
+        }
+        if (async) {
+            try {
+                executor.execute(() -> {
+                    if (context.isActive()) {
+                        load();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 已经在关闭
             }
-            userRepository.save(user);
+        } else {
+            load();
         }
-        userRepository.findAll().forEach(System.out::println);
+    }
+
+    @EventListener
+    public void onClosed(ContextClosedEvent event) throws InterruptedException {
+        if (event.getApplicationContext() != context) {
+            return; // 子容器关闭
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("Seed data still loading at shutdown");
+        }
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        int count = transactionTemplate.execute(status -> {
+            roleRepository.saveAll(Arrays.asList(defaultRole, adminRole));
+
+            // 测试用户，都有默认角色：Default User，第一个用户（ID 为 1）设置为超级管理员
+            List<User> users = Stream.of("Yin Guo Wei", "Liang Jian", "Wan Jon Yew", "Kwek So Cheer")
+                    .map(name -> new User(
+                            name,
+                            name.replaceAll(" ", "").toLowerCase(),
+//                            "111111", // TODO: default & encode
+                            name.replaceAll(" ", "").toLowerCase() + "@cn.wilmar-intl.com"
+                    ))
+                    .collect(Collectors.toList());
+            users.forEach(user -> user.getRoles().add(defaultRole));
+            users.get(0).getRoles().add(adminRole);
+            return userRepository.saveAll(users).size();
+        });
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        timeline.ifAvailable(t -> t.duration(async ? "seedAsync" : "seed", millis));
+        logger.info("Loaded {} demo users and 2 roles in {} ms", count, millis);
     }
 
 }
@@ -245,6 +660,88 @@ class InitDataLoader implements CommandLineRunner {
 @interface ApiPageable {
 }
 
+/**
+ * 游标分页的不透明令牌，编码上一页最后一个用户 ID
+ */
+final class KeysetCursor {
+
+    private static final String PREFIX = "id:";
+
+    private KeysetCursor() {
+    }
+
+    static String encode(Long id) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((PREFIX + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解析令牌，空令牌表示从头开始
+     *
+     * @return 上一页最后一个用户 ID，令牌无效时返回 null
+     */
+    static Long decode(String cursor) {
+        if (cursor.isEmpty()) {
+            return 0L;
+        }
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            return value.startsWith(PREFIX) ? Long.valueOf(value.substring(PREFIX.length())) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
+
+/**
+ * 由版本号生成的强 ETag，以及 If-Match / If-None-Match 请求头的比较
+ */
+final class ETags {
+
+    private static final String ANY = "*";
+    private static final String WEAK_PREFIX = "W/";
+
+    private ETags() {
+    }
+
+    static String of(User user) {
+        return of(user.getVersion());
+    }
+
+    static String of(Long version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * If-None-Match 使用弱比较：忽略 W/ 前缀
+     */
+    static boolean noneMatch(String header, String etag) {
+        return header == null || !contains(header, etag, true);
+    }
+
+    /**
+     * If-Match 使用强比较：弱 ETag 不匹配，没有请求头时视为匹配
+     */
+    static boolean match(String header, String etag) {
+        return header == null || contains(header, etag, false);
+    }
+
+    private static boolean contains(String header, String etag, boolean weak) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (ANY.equals(tag)) {
+                return true;
+            }
+            if (weak && tag.startsWith(WEAK_PREFIX)) {
+                tag = tag.substring(WEAK_PREFIX.length());
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
 /**
  * User 控制器，管理所有路径
  */
@@ -256,31 +753,152 @@ class UserController {
     private final Logger logger = LoggerFactory.getLogger(UserController.class);
 
     private static final String APPLICATION_NAME = "RestfulApiDemo";
+    private static final String NEXT_CURSOR_HEADER = "X-" + APPLICATION_NAME + "-next-cursor";
     private final UserRepository userRepository;
-    private final RoleRepository roleRepository;
+    private final UserSearchIndex userSearchIndex;
+    private final UserBulkImporter userBulkImporter;
+    private final UserExporter userExporter;
+    private final UserRoleAssigner userRoleAssigner;
+    private final UserViews userViews;
+    private final UserLoginRegistry userLoginRegistry;
+    private final ApiExecutor apiExecutor;
+    private final boolean searchIndexed;
 
-    UserController(UserRepository userRepository, RoleRepository roleRepository) {
+    UserController(UserRepository userRepository, UserSearchIndex userSearchIndex,
+                   UserBulkImporter userBulkImporter, UserExporter userExporter, UserRoleAssigner userRoleAssigner,
+                   UserViews userViews, UserLoginRegistry userLoginRegistry, ApiExecutor apiExecutor,
+                   @Value("${api.search.indexed:true}") boolean searchIndexed) {
         this.userRepository = userRepository;
-        this.roleRepository = roleRepository;
+        this.userSearchIndex = userSearchIndex;
+        this.userBulkImporter = userBulkImporter;
+        this.userExporter = userExporter;
+        this.userRoleAssigner = userRoleAssigner;
+        this.userViews = userViews;
+        this.userLoginRegistry = userLoginRegistry;
+        this.apiExecutor = apiExecutor;
+        this.searchIndexed = searchIndexed;
     }
 
-    @ApiOperation(value = "根据用户名查询用户")
-    @ApiResponses(@ApiResponse(code = 200, message = "查询信息成功", response = User.class, responseContainer = "List"))
+    @ApiOperation(value = "根据用户名查询用户", notes = "指定 after 参数时使用游标分页：按 ID 升序，忽略 page 和 sort，下一页令牌在响应头 X-RestfulApiDemo-next-cursor 中")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "查询信息成功", response = UserView.class, responseContainer = "List"),
+            @ApiResponse(code = 400, message = "游标令牌无效")
+    })
     @GetMapping("/users")
     @ApiPageable
-    public ResponseEntity<List<User>> queryUsers(
+    public ResponseEntity<List<UserView>> queryUsers(
             @PageableDefault Pageable page, // TODO: too much params
             @ApiParam(value = "查询关键字", allowableValues = "range[1,5]", defaultValue = "Yin")
-            @RequestParam(value = "keyword", defaultValue = "") String keyword) {
+            @RequestParam(value = "keyword", defaultValue = "") String keyword,
+            @ApiParam(value = "游标令牌，取上一页响应头中的下一页令牌，为空表示第一页")
+            @RequestParam(value = "after", required = false) String after) {
+        return queryUsers(page, keyword, after, userViews::findAllByIdInOrder);
+    }
+
+    @ApiOperation(value = "根据用户名查询用户的部分字段", notes = "只查询并返回 fields 中的字段，选择 roles 时才查询角色；分页和游标参数同上")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "查询信息成功", response = UserView.class, responseContainer = "List"),
+            @ApiResponse(code = 400, message = "字段名无效或游标令牌无效")
+    })
+    @GetMapping(value = "/users", params = "fields")
+    @ApiPageable
+    public ResponseEntity<List<PartialUserView>> queryUserFields(
+            @PageableDefault Pageable page,
+            @ApiParam(value = "返回的字段，逗号分隔：id,name,login,email,roles", required = true, defaultValue = "id,login")
+            @RequestParam("fields") String fields,
+            @ApiParam(value = "查询关键字")
+            @RequestParam(value = "keyword", defaultValue = "") String keyword,
+            @ApiParam(value = "游标令牌，取上一页响应头中的下一页令牌，为空表示第一页")
+            @RequestParam(value = "after", required = false) String after) {
+        Set<UserField> selected = parseFields(fields);
+        if (selected == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return queryUsers(page, keyword, after, ids -> userViews.findAllByIdInOrder(ids, selected, false));
+    }
+
+    private <T> ResponseEntity<List<T>> queryUsers(Pageable page, String keyword, String after, Function<List<Long>, List<T>> views) {
+        if (after != null) {
+            Long afterId = KeysetCursor.decode(after);
+            if (afterId == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            Slice<Long> ids = queryUserIdsAfter(keyword, afterId, page.getPageSize());
+            ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+            if (ids.hasNext()) {
+                List<Long> content = ids.getContent();
+                builder.header(NEXT_CURSOR_HEADER, KeysetCursor.encode(content.get(content.size() - 1)));
+            }
+            return builder.body(views.apply(ids.getContent()));
+        }
         // BOTH WORKS!
 //        Page<User> users = userRepository.findByLoginLikeIgnoreCaseOrNameLikeIgnoreCaseOrEmailLikeIgnoreCase(page, "%" + keyword + "%", "%" + keyword + "%", "%" + keyword + "%");
-        Page<User> users = userRepository.findByKeyword(page, keyword);
-        return ResponseEntity.ok(users.getContent());
+        // 通过内存索引（或 JPQL）查到 ID，再一次查询构造用户视图
+        Page<Long> ids = searchIndexed
+                ? userSearchIndex.search(keyword, page)
+                : userRepository.findIdsByKeyword(withoutScore(page), keyword);
+        return ResponseEntity.ok(views.apply(ids.getContent()));
+    }
+
+    /**
+     * 数据库查询没有匹配度，去掉 score 排序
+     */
+    private static Pageable withoutScore(Pageable page) {
+        if (page.getSort().getOrderFor("score") == null) {
+            return page;
+        }
+        Sort sort = Sort.by(page.getSort().stream().filter(order -> !"score".equals(order.getProperty())).collect(Collectors.toList()));
+        return page.isPaged() ? PageRequest.of(page.getPageNumber(), page.getPageSize(), sort) : Pageable.unpaged();
+    }
+
+    /**
+     * @return 字段名无效时返回 null
+     */
+    private static Set<UserField> parseFields(String fields) {
+        try {
+            return UserField.parse(fields);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Slice<Long> queryUserIdsAfter(String keyword, Long afterId, int size) {
+        // 无关键字时直接按主键顺序扫描
+        if (!searchIndexed || keyword.isEmpty()) {
+            return userRepository.findIdsByKeywordAfter(afterId, keyword, PageRequest.of(0, size));
+        }
+        return userSearchIndex.searchAfter(keyword, afterId, size);
+    }
+
+    @ApiOperation(value = "导出用户", notes = "按 ID 顺序流式导出全部或匹配关键字的用户，格式为 NDJSON 或 CSV")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "导出成功"),
+            @ApiResponse(code = 400, message = "导出格式不支持")
+    })
+    @GetMapping(value = "/users/export", produces = {UserBulkImporter.NDJSON_VALUE, "text/csv"})
+    public ResponseEntity<StreamingResponseBody> exportUsers(
+            @ApiParam(value = "查询关键字")
+            @RequestParam(value = "keyword", defaultValue = "") String keyword,
+            @ApiParam(value = "导出格式", allowableValues = "ndjson,csv", defaultValue = "ndjson")
+            @RequestParam(value = "format", defaultValue = "ndjson") String format) {
+        UserExporter.Format exportFormat = Stream.of(UserExporter.Format.values())
+                .filter(value -> value.name().equalsIgnoreCase(format))
+                .findFirst().orElse(null);
+        if (exportFormat == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.mediaType + ";charset=UTF-8"));
+        if (exportFormat == UserExporter.Format.CSV) {
+            builder.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"users.csv\"");
+        }
+        return builder.body(out -> userExporter.export(keyword, exportFormat, out));
     }
 
     @ApiOperation(value = "根据用户id返回资源对象")
     @ApiResponses({
             @ApiResponse(code = 200, message = "获取信息成功", response = User.class),
+            @ApiResponse(code = 304, message = "用户没有变化（If-None-Match 匹配）"),
             @ApiResponse(code = 404, message = "没有找到用户id"),
             @ApiResponse(code = 400, message = "请求参数可能有误")
     })
@@ -288,16 +906,56 @@ class UserController {
     @GetMapping("/users/{id}")
     public ResponseEntity<User> get(
             @ApiParam(name = "id", value = "用户id", required = true, defaultValue = "1") // 自动检测 type = path
-            @PathVariable Long id) {
+            @PathVariable Long id,
+            @ApiParam(value = "上次响应的 ETag")
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
         if (id == null) {
 //            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
             return ResponseEntity.badRequest().build();
         }
         return userRepository.findById(id)
-                .map(ResponseEntity::ok)
+                .map(user -> {
+                    String etag = ETags.of(user);
+                    if (!ETags.noneMatch(ifNoneMatch, etag)) {
+                        // 没有变化时不返回响应体，也不经过序列化
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).<User>build();
+                    }
+                    return ResponseEntity.ok().eTag(etag).body(user);
+                })
                 .orElseGet(() -> ResponseEntity.notFound().build());
     }
 
+    @ApiOperation(value = "根据用户id返回资源对象的部分字段", notes = "只查询并返回 fields 中的字段，选择 roles 时才查询角色")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "获取信息成功", response = UserView.class),
+            @ApiResponse(code = 304, message = "用户没有变化（If-None-Match 匹配）"),
+            @ApiResponse(code = 404, message = "没有找到用户id"),
+            @ApiResponse(code = 400, message = "字段名无效")
+    })
+    @GetMapping(value = "/users/{id}", params = "fields")
+    public ResponseEntity<PartialUserView> getFields(
+            @ApiParam(name = "id", value = "用户id", required = true, defaultValue = "1")
+            @PathVariable Long id,
+            @ApiParam(value = "返回的字段，逗号分隔：id,name,login,email,roles", required = true, defaultValue = "id,login")
+            @RequestParam("fields") String fields,
+            @ApiParam(value = "上次响应的 ETag")
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        Set<UserField> selected = parseFields(fields);
+        if (selected == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        List<PartialUserView> users = userViews.findAllByIdInOrder(Collections.singletonList(id), selected, true);
+        if (users.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        PartialUserView user = users.get(0);
+        String etag = ETags.of(user.version);
+        if (!ETags.noneMatch(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        return ResponseEntity.ok().eTag(etag).body(user);
+    }
+
     @ApiOperation(value = "新建用户", notes = "提交新建用户")
     @ApiResponses({
             @ApiResponse(code = 201, message = "资源创建成功", response = User.class),
@@ -306,38 +964,61 @@ class UserController {
     @PostMapping("/users")
     public ResponseEntity<User> save(
             @ApiParam(name = "user", value = "用户对象", required = true)
-            @Valid @RequestBody User user) throws URISyntaxException {
-        Optional<User> userOpt = userRepository.getUserByLogin(user.getLogin());
-        if (userOpt.isPresent()) {
+            @Valid @RequestBody User user) {
+        // 新账号通常不存在，由 userLoginRegistry 直接判断，不查询数据库
+        if (userLoginRegistry.exists(user.getLogin())) {
 //            return new ResponseEntity<>(HttpStatus.CONFLICT);
-            HttpHeaders headers = new HttpHeaders();
-            headers.add("X-" + APPLICATION_NAME + "-error", "用户账号已经存在冲突");
-            return new ResponseEntity<>(headers, HttpStatus.CONFLICT);
+            return conflict("用户账号已经存在冲突");
         } else {
 //            return new ResponseEntity<>(userRepository.save(user), HttpStatus.CREATED);
             user.setId(null);
             user.setRoles(null);
-            return ResponseEntity.created(new URI("/api/users"))
+            User saved;
+            try {
+                saved = userRepository.save(user);
+            } catch (DataIntegrityViolationException e) {
+                // 检查之后被并发的请求抢先创建，由唯一约束拦截
+                logger.debug("Login {} created concurrently", user.getLogin());
+                return conflict("用户账号已经存在冲突");
+            }
+            return ResponseEntity.created(URI.create("/api/users"))
                     .header("X-" + APPLICATION_NAME + "-alert", "资源创建成功") // TODO: mess code
-                    .body(userRepository.save(user));
+                    .body(saved);
         }
     }
 
+    @ApiOperation(value = "批量导入用户", notes = "请求体为用户对象的 JSON 数组或 NDJSON，按块提交；响应为逐行的导入结果（NDJSON），status 为 201/400/409")
+    @ApiImplicitParams(@ApiImplicitParam(name = "users", paramType = "body", dataType = "User", allowMultiple = true, required = true, value = "用户对象集合"))
+    @ApiResponses(@ApiResponse(code = 200, message = "导入完成，逐行结果见响应体", response = ImportResult.class, responseContainer = "List"))
+    @PostMapping(value = "/users/import", consumes = {MediaType.APPLICATION_JSON_VALUE, UserBulkImporter.NDJSON_VALUE},
+            produces = UserBulkImporter.NDJSON_VALUE)
+    public void importUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(UserBulkImporter.NDJSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        userBulkImporter.importUsers(request.getInputStream(), response.getOutputStream());
+    }
+
     @ApiOperation(value = "更新用户信息", notes = "更新用户部分数据")
     @ApiResponses({
             @ApiResponse(code = 200, message = "更新成功", response = User.class),
-            @ApiResponse(code = 404, message = "没有找到用户id")
+            @ApiResponse(code = 404, message = "没有找到用户id"),
+            @ApiResponse(code = 412, message = "用户已被修改（If-Match 不匹配）")
     })
     @PatchMapping("/users/{id}")
     public ResponseEntity<User> patchUser(
             @ApiParam(name = "id", value = "用户id", required = true, defaultValue = "1")
             @PathVariable Long id,
+            @ApiParam(value = "读取用户时得到的 ETag")
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
             @ApiParam(name = "user", value = "用户对象", required = true)
             @RequestBody User user) {
-        Optional<User> userOpt = userRepository.findById(id);
+        Optional<User> userOpt = userRepository.findUncachedById(id);
         if (!userOpt.isPresent()) {
             return ResponseEntity.notFound().build();
         }
+        if (!ETags.match(ifMatch, ETags.of(userOpt.get()))) {
+            return preconditionFailed();
+        }
         // TODO: mapper, and can't set Login
         User userOrig = userOpt.get();
         if (user.getName() != null) {
@@ -350,36 +1031,44 @@ class UserController {
             userOrig.setPassword(user.getPassword());
         }
         // TODO: modified judge
-        return ResponseEntity.ok(userRepository.save(userOrig));
+        User saved = userRepository.save(userOrig);
+        return ResponseEntity.ok().eTag(ETags.of(saved)).body(saved);
     }
 
     @ApiOperation(value = "更新用户", notes = "保存编辑后的用户")
     @ApiResponses({
             @ApiResponse(code = 200, message = "更新成功", response = User.class),
-            @ApiResponse(code = 404, message = "没有找到用户id")
+            @ApiResponse(code = 404, message = "没有找到用户id"),
+            @ApiResponse(code = 412, message = "用户已被修改（If-Match 不匹配）")
     })
     @PutMapping("/users/{id}")
     public ResponseEntity<User> update(
             @ApiParam(name = "id", value = "用户id", required = true, defaultValue = "1")
             @PathVariable Long id,
+            @ApiParam(value = "读取用户时得到的 ETag")
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
             @ApiParam(name = "user", value = "用户对象", required = true)
             @Valid @RequestBody User user) {
-        Optional<User> userOpt = userRepository.findById(id);
+        Optional<User> userOpt = userRepository.findUncachedById(id);
         if (!userOpt.isPresent()) {
             return ResponseEntity.notFound().build();
         }
+        if (!ETags.match(ifMatch, ETags.of(userOpt.get()))) {
+            return preconditionFailed();
+        }
         // TODO: merge
 //        new AssertTrue(userOpt.get().getLogin().equals(user.getLogin()), "Error login");
         // TODO: mapper
         // TODO: modified judge
-        return ResponseEntity.ok(userRepository.save(
+        User saved = userRepository.save(
                 userOpt.map(userOrig -> {
                     userOrig.setEmail(user.getEmail());
                     userOrig.setName(user.getName());
                     userOrig.setPassword(user.getPassword());
                     return userOrig;
                 }).get()
-        ));
+        );
+        return ResponseEntity.ok().eTag(ETags.of(saved)).body(saved);
     }
 
     // updatePassword
@@ -387,50 +1076,51 @@ class UserController {
     @ApiOperation(value = "删除用户", notes = "删除用户")
     @ApiResponses({
             @ApiResponse(code = 204, message = "删除成功，没有返回内容"),
-            @ApiResponse(code = 404, message = "没有找到用户id")
+            @ApiResponse(code = 404, message = "没有找到用户id"),
+            @ApiResponse(code = 412, message = "用户已被修改（If-Match 不匹配）")
     })
     @DeleteMapping("/users/{id}")
     public ResponseEntity<Void> delete(
             @ApiParam(name = "id", value = "用户id", required = true, defaultValue = "4")
-            @PathVariable Long id) {
-        Optional<User> userOpt = userRepository.findById(id);
+            @PathVariable Long id,
+            @ApiParam(value = "读取用户时得到的 ETag")
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        Optional<User> userOpt = userRepository.findUncachedById(id);
         if (!userOpt.isPresent()) {
             return ResponseEntity.notFound().build();
         }
-        userRepository.deleteById(id);
+        if (!ETags.match(ifMatch, ETags.of(userOpt.get()))) {
+            return preconditionFailed();
+        }
+        userRepository.delete(userOpt.get());
         return ResponseEntity.noContent().build();
     }
 
 
-    @ApiOperation(value = "给指定用户新增角色")
+    @ApiOperation(value = "给指定用户新增角色", notes = "用户已有该角色时不做修改，返回 200")
     @PostMapping("/users/{userId}/roles/{roleId}")
     @ApiResponses({
             @ApiResponse(code = 201, message = "用户角色创建成功", response = User.class),
+            @ApiResponse(code = 200, message = "用户已有该角色", response = User.class),
             @ApiResponse(code = 404, message = "没有找到用户id或角色id")
     })
     public ResponseEntity<User> addRole(
             @ApiParam(name = "userId", value = "用户id", required = true, defaultValue = "2")
             @PathVariable("userId") final Long userId,
             @ApiParam(name = "roleId", value = "角色id", required = true, defaultValue = "2")
-            @PathVariable("roleId") final Long roleId) throws URISyntaxException {
-        Optional<User> userOpt = userRepository.findById(userId);
-        Optional<Role> roleOpt = roleRepository.findById(roleId);
-        if (!userOpt.isPresent() || !roleOpt.isPresent()) {
+            @PathVariable("roleId") final Long roleId) {
+        RoleAssignmentResult result = userRoleAssigner.grant(Collections.singleton(userId), Collections.singleton(roleId));
+        if (!result.getMissingUserIds().isEmpty() || !result.getMissingRoleIds().isEmpty()) {
             return ResponseEntity.notFound().build();
         }
-        userOpt.get().getRoles().forEach(role -> {
-            if (role.getId().equals(roleId)) {
-                // TODO:
-                logger.error("User doesn't have this Role");
-//                return ResponseEntity.notFound().build();
-            }
-        });
-        userOpt.get().getRoles().add(roleOpt.get());
-        userRepository.save(userOpt.get());
-        return ResponseEntity.created(new URI("/api/users")).body(userOpt.get());
+        return userRepository.findById(userId)
+                .map(user -> result.getChangedRows() == 0
+                        ? ResponseEntity.ok().eTag(ETags.of(user)).body(user)
+                        : ResponseEntity.created(URI.create("/api/users")).eTag(ETags.of(user)).body(user))
+                .orElseGet(() -> ResponseEntity.notFound().build());
     }
 
-    @ApiOperation(value = "删除指定用户的指定角色")
+    @ApiOperation(value = "删除指定用户的指定角色", notes = "用户没有该角色时不做修改")
     @DeleteMapping("/users/{userId}/roles/{roleId}")
     @ApiResponses({
             @ApiResponse(code = 204, message = "删除成功，没有返回内容"),
@@ -441,17 +1131,78 @@ class UserController {
             @PathVariable("userId") final Long userId,
             @ApiParam(name = "roleId", value = "角色id", required = true, defaultValue = "2")
             @PathVariable("roleId") final Long roleId) {
-        Optional<User> userOpt = userRepository.findById(userId);
-        Optional<Role> roleOpt = roleRepository.findById(roleId);
-        if (!userOpt.isPresent() || !roleOpt.isPresent()) {
+        RoleAssignmentResult result = userRoleAssigner.revoke(Collections.singleton(userId), Collections.singleton(roleId));
+        if (!result.getMissingUserIds().isEmpty() || !result.getMissingRoleIds().isEmpty()) {
             return ResponseEntity.notFound().build();
         }
-        // TODO: exists
-        userOpt.get().getRoles().remove(roleOpt.get());
-        userRepository.save(userOpt.get());
         return ResponseEntity.noContent().build();
     }
 
+    @ApiOperation(value = "批量授予角色", notes = "在一个事务中给一组用户授予一组角色，已有的角色不重复添加，可以重复调用；不存在的用户被忽略并在 missingUserIds 中返回")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "授予成功", response = RoleAssignmentResult.class),
+            @ApiResponse(code = 400, message = "用户或角色集合为空"),
+            @ApiResponse(code = 404, message = "角色不存在，没有做任何修改", response = RoleAssignmentResult.class)
+    })
+    @PostMapping("/users/roles/grant")
+    public DeferredResult<ResponseEntity<RoleAssignmentResult>> grantRoles(
+            @ApiParam(name = "assignment", value = "用户和角色", required = true)
+            @Valid @RequestBody RoleAssignment assignment) {
+        return apiExecutor.submit("grantRoles", () ->
+                assignmentResponse(userRoleAssigner.grant(assignment.getUserIds(), assignment.getRoleIds())));
+    }
+
+    @ApiOperation(value = "批量撤销角色", notes = "在一个事务中撤销一组用户的一组角色，没有的角色忽略，可以重复调用；不存在的用户被忽略并在 missingUserIds 中返回")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "撤销成功", response = RoleAssignmentResult.class),
+            @ApiResponse(code = 400, message = "用户或角色集合为空"),
+            @ApiResponse(code = 404, message = "角色不存在，没有做任何修改", response = RoleAssignmentResult.class)
+    })
+    @PostMapping("/users/roles/revoke")
+    public DeferredResult<ResponseEntity<RoleAssignmentResult>> revokeRoles(
+            @ApiParam(name = "assignment", value = "用户和角色", required = true)
+            @Valid @RequestBody RoleAssignment assignment) {
+        return apiExecutor.submit("revokeRoles", () ->
+                assignmentResponse(userRoleAssigner.revoke(assignment.getUserIds(), assignment.getRoleIds())));
+    }
+
+    private static ResponseEntity<RoleAssignmentResult> assignmentResponse(RoleAssignmentResult result) {
+        if (!result.getMissingRoleIds().isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(result);
+        }
+        return ResponseEntity.ok(result);
+    }
+
+    /**
+     * 读取之后、提交之前用户被其他请求修改，与 If-Match 不匹配同样处理
+     */
+    @ExceptionHandler(ObjectOptimisticLockingFailureException.class)
+    public ResponseEntity<Void> optimisticLockingFailure(ObjectOptimisticLockingFailureException e) {
+        logger.debug("Concurrent modification of {} {}", e.getPersistentClassName(), e.getIdentifier());
+        return preconditionFailed();
+    }
+
+    /**
+     * 其他违反数据库约束的修改（如并发修改导致的唯一约束冲突）
+     */
+    @ExceptionHandler(DataIntegrityViolationException.class)
+    public ResponseEntity<Void> dataIntegrityViolation(DataIntegrityViolationException e) {
+        logger.debug("Data integrity violation: {}", e.getMostSpecificCause().getMessage());
+        return conflict("数据与现有记录冲突");
+    }
+
+    private <T> ResponseEntity<T> conflict(String message) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .header("X-" + APPLICATION_NAME + "-error", message)
+                .build();
+    }
+
+    private <T> ResponseEntity<T> preconditionFailed() {
+        return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                .header("X-" + APPLICATION_NAME + "-error", "用户已被修改，请重新读取")
+                .build();
+    }
+
 }
 
 /**
@@ -462,17 +1213,17 @@ class UserController {
 @RequestMapping("/api")
 class RoleController {
 
-    private final RoleRepository repository;
+    private final UserViews userViews;
 
-    RoleController(RoleRepository repository) {
-        this.repository = repository;
+    RoleController(UserViews userViews) {
+        this.userViews = userViews;
     }
 
     @ApiOperation(value = "查询所有角色")
     @ApiResponses(
-            @ApiResponse(code = 200, message = "返回成功", response = Role.class, responseContainer = "List"))
+            @ApiResponse(code = 200, message = "返回成功", response = RoleView.class, responseContainer = "List"))
     @GetMapping("/roles")
-    public ResponseEntity<List<Role>> getAllRoles() {
-        return ResponseEntity.ok((List<Role>) (repository.findAll()));
+    public ResponseEntity<List<RoleView>> getAllRoles() {
+        return ResponseEntity.ok(userViews.roles());
     }
 }
@@ -0,0 +1,301 @@
+package cn.wilmar.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.boot.context.event.ApplicationPreparedEvent;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.boot.context.event.ApplicationStartingEvent;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.support.ServletRequestHandledEvent;
+import springfox.documentation.spring.web.plugins.DocumentationPluginsBootstrapper;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * 启动各阶段的时间点（距 JVM 启动的毫秒数）、首个请求的时间和最慢的 Bean，见 /actuator/startup。
+ * 通过 META-INF/spring.factories 注册，在应用上下文创建之前就开始记录，准备好上下文后注册为 Bean
+ */
+class StartupTimeline implements ApplicationListener<ApplicationEvent> {
+
+    static final String BEAN_NAME = "startupTimeline";
+
+    /**
+     * 报告中列出的最慢 Bean 数
+     */
+    static final int SLOWEST_BEANS = 20;
+
+    private final Logger logger = LoggerFactory.getLogger(StartupTimeline.class);
+
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Long> durations = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final ThreadLocal<Deque<BeanFrame>> creating = ThreadLocal.withInitial(ArrayDeque::new);
+    private final Map<String, Long> beanNanos = new ConcurrentHashMap<>();
+    private final AtomicBoolean firstRequest = new AtomicBoolean();
+    private volatile boolean recordingBeans = true;
+
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ApplicationStartingEvent) {
+            mark("starting");
+        } else if (event instanceof ApplicationEnvironmentPreparedEvent) {
+            mark("environmentPrepared");
+        } else if (event instanceof ApplicationPreparedEvent) {
+            mark("contextPrepared");
+            ConfigurableListableBeanFactory beanFactory = ((ApplicationPreparedEvent) event).getApplicationContext().getBeanFactory();
+            beanFactory.registerSingleton(BEAN_NAME, this);
+            beanFactory.addBeanPostProcessor(new BeanTimer());
+        } else if (event instanceof ContextRefreshedEvent) {
+            mark("contextRefreshed");
+        } else if (event instanceof WebServerInitializedEvent) {
+            mark("webServerStarted");
+        } else if (event instanceof ApplicationStartedEvent) {
+            mark("started");
+        } else if (event instanceof ApplicationReadyEvent) {
+            mark("ready");
+            recordingBeans = false;
+            logger.info("Ready {} ms after JVM start (context refresh {} ms); slowest beans: {}",
+                    phases.get("ready"), between("contextPrepared", "contextRefreshed"), slowestBeans(5));
+        } else if (event instanceof ServletRequestHandledEvent && firstRequest.compareAndSet(false, true)) {
+            mark("firstRequest");
+        }
+    }
+
+    /**
+     * 记录一个阶段的耗时，如同步/异步加载初始数据
+     */
+    void duration(String name, long millis) {
+        durations.put(name, millis);
+    }
+
+    /**
+     * 启动报告
+     */
+    Map<String, Object> report() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("jvmStart", Instant.ofEpochMilli(jvmStartMillis).toString());
+        synchronized (phases) {
+            report.put("phasesMs", new LinkedHashMap<>(phases));
+        }
+        synchronized (durations) {
+            report.put("durationsMs", new LinkedHashMap<>(durations));
+        }
+        report.put("contextRefreshMs", between("contextPrepared", "contextRefreshed"));
+        report.put("timeToReadyMs", phases.get("ready"));
+        report.put("timeToFirstRequestMs", phases.get("firstRequest"));
+        report.put("beansCreated", beanNanos.size());
+        report.put("slowestBeansMs", slowestBeans(SLOWEST_BEANS));
+        return report;
+    }
+
+    private void mark(String phase) {
+        phases.putIfAbsent(phase, System.currentTimeMillis() - jvmStartMillis);
+    }
+
+    private Long between(String from, String to) {
+        Long start = phases.get(from);
+        Long end = phases.get(to);
+        return start == null || end == null ? null : end - start;
+    }
+
+    /**
+     * Bean 的创建时间不含其依赖的创建时间
+     */
+    private Map<String, Long> slowestBeans(int limit) {
+        return beanNanos.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(limit)
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> TimeUnit.NANOSECONDS.toMillis(e.getValue()),
+                        (a, b) -> a, LinkedHashMap::new));
+    }
+
+    /**
+     * 记录启动期间每个 Bean 从实例化到初始化完成的时间。依赖在同一线程中嵌套创建，按栈扣除
+     */
+    private final class BeanTimer implements InstantiationAwareBeanPostProcessor {
+
+        @Override
+        public Object postProcessBeforeInstantiation(Class<?> beanClass, String beanName) {
+            if (recordingBeans) {
+                creating.get().push(new BeanFrame(beanName, System.nanoTime()));
+            }
+            return null;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            Deque<BeanFrame> stack = creating.get();
+            if (stack.isEmpty() || !stack.peek().name.equals(beanName)) {
+                return bean;
+            }
+            BeanFrame frame = stack.pop();
+            long total = System.nanoTime() - frame.start;
+            beanNanos.put(beanName, total - frame.nested);
+            if (!stack.isEmpty()) {
+                stack.peek().nested += total;
+            }
+            return bean;
+        }
+    }
+
+    private static final class BeanFrame {
+
+        final String name;
+        final long start;
+        long nested;
+
+        BeanFrame(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+    }
+}
+
+/**
+ * 启动报告：/actuator/startup
+ */
+@Component
+@Endpoint(id = "startup")
+class StartupEndpoint {
+
+    private final StartupTimeline timeline;
+
+    StartupEndpoint(StartupTimeline timeline) {
+        this.timeline = timeline;
+    }
+
+    @ReadOperation
+    public Map<String, Object> startup() {
+        return timeline.report();
+    }
+}
+
+/**
+ * 快速启动（api.startup.lazy=true）：应用的单例 Bean 改为首次使用时才创建。
+ * 基础设施 Bean、BeanPostProcessor、Servlet 过滤器和 SmartLifecycle 仍在启动时创建；
+ * 需要在启动时执行（注册监听器、检查配置）的组件用 @Lazy(false) 标注
+ */
+@Component
+class LazyInitBeanFactoryPostProcessor implements BeanFactoryPostProcessor, EnvironmentAware, Ordered {
+
+    private final Logger logger = LoggerFactory.getLogger(LazyInitBeanFactoryPostProcessor.class);
+
+    private boolean enabled;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.enabled = environment.getProperty("api.startup.lazy", Boolean.class, false);
+    }
+
+    @Override
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+        if (!enabled) {
+            return;
+        }
+        int lazy = 0;
+        for (String name : beanFactory.getBeanDefinitionNames()) {
+            BeanDefinition definition = beanFactory.getBeanDefinition(name);
+            if (definition.isSingleton() && !definition.isLazyInit() && !definition.isAbstract()
+                    && definition.getRole() == BeanDefinition.ROLE_APPLICATION && !explicitlyEager(definition)) {
+                definition.setLazyInit(true);
+                lazy++;
+            }
+        }
+        logger.info("Fast start: {} singleton beans initialized lazily", lazy);
+    }
+
+    private static boolean explicitlyEager(BeanDefinition definition) {
+        return definition instanceof AnnotatedBeanDefinition
+                && ((AnnotatedBeanDefinition) definition).getMetadata().hasAnnotation(Lazy.class.getName());
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+}
+
+/**
+ * springfox.documentation.auto-startup=false 时，Swagger 文档不在启动过程中扫描，
+ * 而是在应用就绪后由后台线程生成，不影响开始接收请求的时间。
+ * 应用关闭时（ContextClosedEvent，Bean 销毁之前）不再开始扫描，并等待正在进行的扫描结束
+ */
+@Component
+class DeferredSwaggerStartup {
+
+    private final Logger logger = LoggerFactory.getLogger(DeferredSwaggerStartup.class);
+
+    private final ConfigurableApplicationContext context;
+    private final ObjectProvider<DocumentationPluginsBootstrapper> bootstrapper;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "swagger-docs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    DeferredSwaggerStartup(ConfigurableApplicationContext context, ObjectProvider<DocumentationPluginsBootstrapper> bootstrapper) {
+        this.context = context;
+        this.bootstrapper = bootstrapper;
+    }
+
+    @EventListener
+    public void onReady(ApplicationReadyEvent event) {
+        DocumentationPluginsBootstrapper docs = bootstrapper.getIfAvailable();
+        if (docs != null && !docs.isAutoStartup()) {
+            try {
+                executor.execute(() -> {
+                    if (context.isActive()) {
+                        docs.start();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 已经在关闭
+            }
+        }
+    }
+
+    @EventListener
+    public void onClosed(ContextClosedEvent event) throws InterruptedException {
+        if (event.getApplicationContext() != context) {
+            return; // 子容器关闭
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("Swagger documentation scan still running at shutdown");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 批量导入用户：流式读取 JSON 数组或 NDJSON，分块检查账号冲突并批量插入，逐行输出导入结果（NDJSON）
+ */
+@Component
+class UserBulkImporter {
+
+    static final String NDJSON_VALUE = "application/x-ndjson";
+
+    /**
+     * 每块的行数，与 hibernate.jdbc.batch_size 成倍数
+     */
+    static final int CHUNK_SIZE = 500;
+
+    private final Logger logger = LoggerFactory.getLogger(UserBulkImporter.class);
+
+    private final ObjectMapper objectMapper;
+    private final UserRepository userRepository;
+    private final UserLoginRegistry userLoginRegistry;
+    private final TransactionTemplate transactionTemplate;
+    private final Validator validator;
+
+    UserBulkImporter(ObjectMapper objectMapper, UserRepository userRepository, UserLoginRegistry userLoginRegistry,
+                     TransactionTemplate transactionTemplate, Validator validator) {
+        this.objectMapper = objectMapper;
+        this.userRepository = userRepository;
+        this.userLoginRegistry = userLoginRegistry;
+        this.transactionTemplate = transactionTemplate;
+        this.validator = validator;
+    }
+
+    /**
+     * 导入用户，每块在独立的事务中提交，内存占用与导入总量无关
+     *
+     * @param in  JSON 数组或 NDJSON 格式的用户
+     * @param out 逐行写出 {@link ImportResult}
+     */
+    void importUsers(InputStream in, OutputStream out) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        generator.setRootValueSeparator(new SerializedString("\n"));
+        List<Row> chunk = new ArrayList<>(CHUNK_SIZE);
+        int index = 0;
+        try (MappingIterator<User> users = objectMapper.readerFor(User.class).readValues(in)) {
+            while (users.hasNextValue()) {
+                chunk.add(new Row(index++, users.nextValue()));
+                if (chunk.size() == CHUNK_SIZE) {
+                    write(generator, importChunk(chunk));
+                    chunk.clear();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // 格式错误之后的数据无法继续解析，已提交的块保持不变
+            write(generator, importChunk(chunk));
+            chunk.clear();
+            write(generator, new ImportResult(index, null, HttpStatus.BAD_REQUEST.value(), null, e.getOriginalMessage()));
+        }
+        write(generator, importChunk(chunk));
+        generator.flush();
+    }
+
+    private List<ImportResult> importChunk(List<Row> chunk) {
+        List<ImportResult> results = new ArrayList<>(chunk.size());
+        List<Row> candidates = new ArrayList<>(chunk.size());
+        Set<String> logins = new HashSet<>();
+        for (Row row : chunk) {
+            if (row.user == null) {
+                results.add(row.result(HttpStatus.BAD_REQUEST, "用户对象不能为空"));
+                continue;
+            }
+            Set<ConstraintViolation<User>> violations = validator.validate(row.user);
+            if (!violations.isEmpty()) {
+                String message = violations.stream()
+                        .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                        .collect(Collectors.joining(", "));
+                results.add(row.result(HttpStatus.BAD_REQUEST, message));
+            } else if (!logins.add(row.user.getLogin())) {
+                results.add(row.result(HttpStatus.CONFLICT, "用户账号在导入数据中重复"));
+            } else {
+                candidates.add(row);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return results;
+        }
+
+        // 只查询 userLoginRegistry 判断为可能存在的账号
+        List<String> maybeExisting = userLoginRegistry.mightExist(logins);
+        Set<String> existing = maybeExisting.isEmpty()
+                ? Collections.emptySet() : new HashSet<>(userRepository.findExistingLogins(maybeExisting));
+        List<Row> inserts = new ArrayList<>(candidates.size());
+        for (Row row : candidates) {
+            if (existing.contains(row.user.getLogin())) {
+                results.add(row.result(HttpStatus.CONFLICT, "用户账号已经存在冲突"));
+            } else {
+                row.user.setId(null);
+                row.user.setRoles(null);
+                inserts.add(row);
+            }
+        }
+        results.addAll(insert(inserts));
+        results.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+        return results;
+    }
+
+    /**
+     * 整块批量插入；并发导入等原因导致唯一约束冲突时退回逐行插入，定位冲突的行
+     */
+    private List<ImportResult> insert(List<Row> rows) {
+        List<User> users = rows.stream().map(row -> row.user).collect(Collectors.toList());
+        try {
+            transactionTemplate.execute(status -> userRepository.saveAll(users));
+            return rows.stream().map(row -> row.result(HttpStatus.CREATED, null)).collect(Collectors.toList());
+        } catch (DataIntegrityViolationException e) {
+            logger.debug("Batch insert failed, retrying row by row", e);
+        }
+        List<ImportResult> results = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            row.user.setId(null);
+            try {
+                transactionTemplate.execute(status -> userRepository.save(row.user));
+                results.add(row.result(HttpStatus.CREATED, null));
+            } catch (DataIntegrityViolationException e) {
+                results.add(row.result(HttpStatus.CONFLICT, "用户账号已经存在冲突"));
+            }
+        }
+        return results;
+    }
+
+    private void write(JsonGenerator generator, List<ImportResult> results) throws IOException {
+        for (ImportResult result : results) {
+            write(generator, result);
+        }
+        generator.flush();
+    }
+
+    private void write(JsonGenerator generator, ImportResult result) throws IOException {
+        generator.writeObject(result);
+    }
+
+    private static final class Row {
+        final int index;
+        final User user;
+
+        Row(int index, User user) {
+            this.index = index;
+            this.user = user;
+        }
+
+        ImportResult result(HttpStatus status, String message) {
+            return new ImportResult(index, user == null ? null : user.getLogin(), status.value(),
+                    status == HttpStatus.CREATED ? user.getId() : null, message);
+        }
+    }
+}
+
+/**
+ * 批量导入中单行的结果
+ */
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+class ImportResult {
+    /**
+     * 行号，从 0 开始
+     */
+    int index;
+    String login;
+    /**
+     * 201 创建成功，400 数据无效，409 账号冲突
+     */
+    int status;
+    Long id;
+    String message;
+}
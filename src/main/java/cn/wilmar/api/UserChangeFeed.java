@@ -0,0 +1,634 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import lombok.Data;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.AuditorAware;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 变化的对象类型
+ */
+enum ChangeEntityType {
+    USER,
+    ROLE
+}
+
+/**
+ * 变化类型
+ */
+enum ChangeType {
+    CREATED,
+    UPDATED,
+    DELETED,
+    /**
+     * 批量授予/撤销角色，见 {@link UserRoleAssigner}
+     */
+    ROLES_CHANGED
+}
+
+/**
+ * 用户/角色变化的发件箱（outbox）记录，映射数据库 user_change 表。
+ * 与业务数据在同一个事务中写入，seq 即变化流的顺序
+ */
+@Data
+@Entity
+class UserChange {
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    Long seq;
+    @Enumerated(EnumType.STRING) @Column(nullable = false, length = 10)
+    ChangeEntityType entityType;
+    @Column(nullable = false)
+    Long entityId;
+    @Enumerated(EnumType.STRING) @Column(nullable = false, length = 20)
+    ChangeType changeType;
+    Long version; // 变化之后的版本号（删除时为删除前的版本号），Role 没有版本号
+    @Column(nullable = false)
+    LocalDateTime changedDate;
+    @Column(length = 50)
+    String changedBy;
+    @Column(length = 36)
+    String origin; // 写入该记录的实例（{@link ClusterBus#nodeId()}），核对时跳过本实例自己的变化
+}
+
+/**
+ * 变化记录的读写
+ */
+interface UserChangeRepository extends JpaRepository<UserChange, Long> {
+
+    /**
+     * 查询 seq 之后的变化
+     */
+    List<UserChange> findBySeqGreaterThanOrderBySeq(long since, Pageable pageable);
+
+    /**
+     * 当前最大的 seq，没有记录时为 0
+     */
+    @Query("SELECT COALESCE(MAX(c.seq), 0) FROM UserChange c")
+    long findHead();
+
+    /**
+     * 当前最小的 seq，没有记录时为 0；之前的记录已被清理
+     */
+    @Query("SELECT COALESCE(MIN(c.seq), 0) FROM UserChange c")
+    long findTail();
+
+    /**
+     * 早于 before 的最后一条记录的 seq（最新的一条记录除外，保留它以确定当前位置），没有时为 0
+     */
+    @Query("SELECT COALESCE(MAX(c.seq), 0) FROM UserChange c WHERE c.changedDate < ?1 "
+            + "AND c.seq < (SELECT MAX(h.seq) FROM UserChange h)")
+    long findLastSeqBefore(LocalDateTime before);
+
+    /**
+     * 删除 seq 及之前的记录
+     */
+    @Modifying
+    @Query("DELETE FROM UserChange c WHERE c.seq <= ?1")
+    int deleteThrough(long seq);
+
+    /**
+     * 为角色发生变化的用户记录变化（版本号为用户当前的版本号），在事务的最后调用，使 seq 分配之后很快提交
+     */
+    @Modifying
+    @Query(nativeQuery = true, value = "INSERT INTO user_change (entity_type, entity_id, change_type, version, changed_date, changed_by, origin) "
+            + "SELECT 'USER', u.id, 'ROLES_CHANGED', u.version, ?2, ?3, ?4 FROM user u WHERE u.id IN (?1) ORDER BY u.id")
+    int recordRolesChanged(Collection<Long> userIds, LocalDateTime now, String auditor, String origin);
+}
+
+/**
+ * 通过 Hibernate 事件记录 User/Role 的新增、修改和删除。
+ * 同一个事务（Session）的变化先缓存，在提交之前用一次 JDBC 批量插入写入 user_change，
+ * 与业务数据一起提交或回滚；提交成功后通知 {@link UserChangeFeed} 的等待者。
+ * 原生 SQL 的批量角色修改不经过 Hibernate 事件，由 {@link UserRoleAssigner} 直接记录
+ */
+@Lazy(false)
+@Component
+class UserChangeRecorder implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final String INSERT = "INSERT INTO user_change (entity_type, entity_id, change_type, version, changed_date, changed_by, origin) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final AuditorAware<String> auditorAware;
+    private final UserChangeFeed feed;
+    private final ClusterSync clusterSync;
+
+    /**
+     * Session -> 尚未写入的变化
+     */
+    private final Map<SharedSessionContractImplementor, Pending> pending = new ConcurrentHashMap<>();
+
+    UserChangeRecorder(EntityManagerFactory entityManagerFactory, AuditorAware<String> auditorAware, UserChangeFeed feed,
+                       ClusterSync clusterSync) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.auditorAware = auditorAware;
+        this.feed = feed;
+        this.clusterSync = clusterSync;
+    }
+
+    @PostConstruct
+    void register() {
+        EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        record(event.getSession(), event.getPersister(), event.getEntity(), event.getId(), ChangeType.CREATED);
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        record(event.getSession(), event.getPersister(), event.getEntity(), event.getId(), ChangeType.UPDATED);
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        record(event.getSession(), event.getPersister(), event.getEntity(), event.getId(), ChangeType.DELETED);
+    }
+
+    private void record(EventSource session, EntityPersister persister, Object entity, Object id, ChangeType type) {
+        ChangeEntityType entityType = entityType(persister);
+        if (entityType == null) {
+            return;
+        }
+        UserChange change = new UserChange();
+        change.setEntityType(entityType);
+        change.setEntityId((Long) id);
+        change.setChangeType(type);
+        change.setVersion(persister.isVersioned() ? (Long) persister.getVersion(entity) : null);
+        change.setChangedBy(auditorAware.getCurrentAuditor().orElse(null));
+        pending.computeIfAbsent(session, this::open).changes.add(change);
+    }
+
+    private Pending open(SharedSessionContractImplementor session) {
+        Pending changes = new Pending(session);
+        ((SessionImplementor) session).getActionQueue().registerProcess((BeforeTransactionCompletionProcess) changes);
+        ((SessionImplementor) session).getActionQueue().registerProcess((AfterTransactionCompletionProcess) changes);
+        return changes;
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return false;
+    }
+
+    /**
+     * Hibernate 5.2 中仍是抽象方法（拼写错误的旧名称），转到 {@link #requiresPostCommitHandling(EntityPersister)}
+     */
+    @Deprecated
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return requiresPostCommitHandling(persister);
+    }
+
+    private static ChangeEntityType entityType(EntityPersister persister) {
+        Class<?> type = persister.getMappedClass();
+        if (User.class.equals(type)) {
+            return ChangeEntityType.USER;
+        }
+        if (Role.class.equals(type)) {
+            return ChangeEntityType.ROLE;
+        }
+        return null;
+    }
+
+    /**
+     * 一个事务中的变化；提交之前批量写入（此时 seq 才分配，并发事务的 seq 顺序与提交顺序基本一致）
+     */
+    private final class Pending implements BeforeTransactionCompletionProcess, AfterTransactionCompletionProcess {
+        final SharedSessionContractImplementor session;
+        final List<UserChange> changes = new ArrayList<>();
+
+        Pending(SharedSessionContractImplementor session) {
+            this.session = session;
+        }
+
+        @Override
+        public void doBeforeTransactionCompletion(SessionImplementor session) {
+            pending.remove(this.session);
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            String origin = clusterSync.nodeId();
+            session.doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(INSERT)) {
+                    for (UserChange change : changes) {
+                        statement.setString(1, change.getEntityType().name());
+                        statement.setLong(2, change.getEntityId());
+                        statement.setString(3, change.getChangeType().name());
+                        if (change.getVersion() == null) {
+                            statement.setNull(4, Types.BIGINT);
+                        } else {
+                            statement.setLong(4, change.getVersion());
+                        }
+                        statement.setTimestamp(5, now);
+                        statement.setString(6, change.getChangedBy());
+                        statement.setString(7, origin);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            });
+        }
+
+        @Override
+        public void doAfterTransactionCompletion(boolean success, SharedSessionContractImplementor session) {
+            pending.remove(this.session);
+            if (success) {
+                feed.signal();
+                clusterSync.entitiesChanged(changes);
+            }
+        }
+    }
+}
+
+/**
+ * 变化流：按 seq 顺序读取 user_change，支持长轮询。
+ * <p>
+ * seq 由数据库分配，并发事务可能按与 seq 不同的顺序提交，回滚的事务也会留下空缺。
+ * 读取时遇到空缺就停止，直到本实例第一次看到该空缺之后已超过 api.changes.gap-timeout-ms（视为回滚），
+ * 消费者按返回的 next 继续读取不会漏掉变化。空缺的时长按本实例的单调时钟计算，与写入方的时钟无关；
+ * 写入方都在提交之前才分配 seq（见 {@link UserChangeRecorder}、{@link UserRoleAssigner}），未提交的空缺只存在很短的时间。
+ * <p>
+ * 超过 api.changes.retention-hours 的记录定期删除（最新的一条除外），since 早于保留的最早记录时返回 410，
+ * 消费者需要重新加载全部数据（如 /api/users/export），再从当前位置开始读取
+ */
+@Component
+class UserChangeFeed implements DisposableBean {
+
+    static final int MAX_LIMIT = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(UserChangeFeed.class);
+
+    private final UserChangeRepository changeRepository;
+    private final UserViews userViews;
+    private final TransactionTemplate transactionTemplate;
+    private final long gapTimeoutNanos;
+    private final int maxWaiters;
+    private final long retentionHours;
+
+    /**
+     * 空缺的第一个 seq -> 本实例第一次看到该空缺的时间（System.nanoTime）
+     */
+    private final Map<Long, Long> gaps = new ConcurrentHashMap<>();
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-feed-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-feed-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    UserChangeFeed(UserChangeRepository changeRepository, UserViews userViews, TransactionTemplate transactionTemplate,
+                   @Value("${api.changes.gap-timeout-ms:10000}") long gapTimeoutMillis,
+                   @Value("${api.changes.max-waiters:1000}") int maxWaiters,
+                   @Value("${api.changes.retention-hours:168}") long retentionHours,
+                   @Value("${api.changes.cleanup-interval-ms:3600000}") long cleanupIntervalMillis) {
+        this.changeRepository = changeRepository;
+        this.userViews = userViews;
+        this.transactionTemplate = transactionTemplate;
+        this.gapTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(gapTimeoutMillis);
+        this.maxWaiters = maxWaiters;
+        this.retentionHours = retentionHours;
+        if (retentionHours > 0) {
+            cleaner.scheduleWithFixedDelay(this::clean, cleanupIntervalMillis, cleanupIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 当前位置，从这里开始读取只返回之后的变化
+     */
+    long head() {
+        return changeRepository.findHead();
+    }
+
+    /**
+     * 读取 since 之后的变化
+     *
+     * @param since 上次返回的 next，0 表示从保留的最早记录开始读取
+     * @param limit 最多返回的条数
+     * @return since 之后的记录已被清理时返回 null
+     */
+    ChangeBatch read(long since, int limit) {
+        List<UserChange> changes = settled(since, limit);
+        if (changes == null) {
+            return null;
+        }
+        return new ChangeBatch(enrich(changes), changes.isEmpty() ? since : changes.get(changes.size() - 1).getSeq());
+    }
+
+    /**
+     * 读取 since 之后连续的变化记录，遇到可能尚未提交的空缺时停止（也用于 {@link ClusterSync} 的定期核对）
+     *
+     * @return since 之后的记录已被清理时返回 null
+     */
+    List<UserChange> settled(long since, int limit) {
+        List<UserChange> rows = changeRepository.findBySeqGreaterThanOrderBySeq(since, PageRequest.of(0, limit));
+        long next = since;
+        if (!rows.isEmpty() && rows.get(0).getSeq() != since + 1) {
+            long tail = changeRepository.findTail();
+            if (since == 0) {
+                next = tail - 1; // 从保留的最早记录开始
+            } else if (since + 1 < tail) {
+                return null;
+            }
+        }
+        long now = System.nanoTime();
+        List<UserChange> changes = new ArrayList<>(rows.size());
+        for (UserChange row : rows) {
+            if (row.getSeq() != next + 1 && now - firstSeen(next + 1, now) < gapTimeoutNanos) {
+                break; // 空缺之前的事务可能尚未提交
+            }
+            changes.add(row);
+            next = row.getSeq();
+        }
+        return changes;
+    }
+
+    /**
+     * 本实例第一次看到从 seq 开始的空缺的时间；顺便丢弃早已超时的空缺
+     */
+    private long firstSeen(long seq, long now) {
+        Long seen = gaps.get(seq);
+        if (seen == null) {
+            gaps.values().removeIf(time -> now - time > 2 * gapTimeoutNanos);
+            seen = gaps.computeIfAbsent(seq, key -> now);
+        }
+        return seen;
+    }
+
+    /**
+     * 读取 since 之后的变化，没有变化时最多等待 waitMillis
+     *
+     * @return since 之后的记录已被清理时返回 410，等待者过多时返回 503
+     */
+    DeferredResult<ResponseEntity<ChangeBatch>> await(long since, int limit, long waitMillis) {
+        DeferredResult<ResponseEntity<ChangeBatch>> result = new DeferredResult<>(waitMillis);
+        if (waitMillis <= 0) {
+            result.setResult(response(read(since, limit)));
+            return result;
+        }
+        if (waiters.size() >= maxWaiters) {
+            result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build());
+            return result;
+        }
+        Waiter waiter = new Waiter(since, limit, result);
+        result.onTimeout(() -> result.setResult(response(read(since, limit))));
+        result.onCompletion(() -> waiters.remove(waiter));
+        // 先登记再读取，避免读取之后、登记之前提交的变化丢失通知
+        waiters.add(waiter);
+        waiter.poll();
+        return result;
+    }
+
+    /**
+     * 有新的变化提交，在后台线程中唤醒等待者
+     */
+    void signal() {
+        if (!waiters.isEmpty() && draining.compareAndSet(false, true)) {
+            notifier.execute(() -> {
+                draining.set(false);
+                waiters.forEach(Waiter::poll);
+            });
+        }
+    }
+
+    private static ResponseEntity<ChangeBatch> response(ChangeBatch batch) {
+        return batch == null ? ResponseEntity.status(HttpStatus.GONE).build() : ResponseEntity.ok(batch);
+    }
+
+    /**
+     * 删除超过保留时间的记录，最新的一条除外
+     *
+     * @return 删除的记录数
+     */
+    int prune(LocalDateTime before) {
+        long through = changeRepository.findLastSeqBefore(before);
+        return through == 0 ? 0 : transactionTemplate.execute(status -> changeRepository.deleteThrough(through));
+    }
+
+    private void clean() {
+        try {
+            prune(LocalDateTime.now().minusHours(retentionHours));
+        } catch (RuntimeException e) {
+            logger.warn("Unable to prune change records", e);
+        }
+    }
+
+    private List<ChangeEvent> enrich(List<UserChange> changes) {
+        if (changes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> userIds = changes.stream().filter(change -> change.getEntityType() == ChangeEntityType.USER)
+                .map(UserChange::getEntityId).distinct().collect(Collectors.toList());
+        Map<Long, UserView> users = userViews.findAllByIdInOrder(userIds).stream()
+                .collect(Collectors.toMap(UserView::getId, Function.identity()));
+        Map<Long, RoleView> roles = changes.stream().anyMatch(change -> change.getEntityType() == ChangeEntityType.ROLE)
+                ? userViews.roles().stream().collect(Collectors.toMap(RoleView::getId, Function.identity()))
+                : Collections.emptyMap();
+        return changes.stream().map(change -> change.getEntityType() == ChangeEntityType.USER
+                ? new ChangeEvent(change, users.get(change.getEntityId()), null)
+                : new ChangeEvent(change, null, roles.get(change.getEntityId())))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        cleaner.shutdownNow();
+        notifier.shutdown();
+        notifier.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private final class Waiter {
+        final long since;
+        final int limit;
+        final DeferredResult<ResponseEntity<ChangeBatch>> result;
+
+        Waiter(long since, int limit, DeferredResult<ResponseEntity<ChangeBatch>> result) {
+            this.since = since;
+            this.limit = limit;
+            this.result = result;
+        }
+
+        void poll() {
+            if (result.isSetOrExpired()) {
+                return;
+            }
+            ChangeBatch batch = read(since, limit);
+            if (batch == null || !batch.getChanges().isEmpty()) {
+                result.setResult(response(batch));
+            }
+        }
+    }
+}
+
+/**
+ * 一条变化，以及对象当前的状态
+ */
+@Data
+@ApiModel(description = "用户/角色变化")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+class ChangeEvent {
+    @ApiModelProperty(value = "变化序号", example = "42")
+    final long seq;
+    @ApiModelProperty(value = "对象类型", example = "USER")
+    final ChangeEntityType entityType;
+    @ApiModelProperty(value = "对象 ID", example = "1")
+    final long entityId;
+    @ApiModelProperty(value = "变化类型", example = "UPDATED")
+    final ChangeType changeType;
+    @ApiModelProperty(value = "变化之后的版本号（与 ETag 相同）", example = "3")
+    final Long version;
+    @ApiModelProperty(value = "变化时间")
+    final LocalDateTime changedDate;
+    @ApiModelProperty(value = "修改人", example = "system")
+    final String changedBy;
+    @ApiModelProperty(value = "用户当前的状态，已删除时没有")
+    final UserView user;
+    @ApiModelProperty(value = "角色当前的状态，已删除时没有")
+    final RoleView role;
+
+    ChangeEvent(UserChange change, UserView user, RoleView role) {
+        this.seq = change.getSeq();
+        this.entityType = change.getEntityType();
+        this.entityId = change.getEntityId();
+        this.changeType = change.getChangeType();
+        this.version = change.getVersion();
+        this.changedDate = change.getChangedDate();
+        this.changedBy = change.getChangedBy();
+        this.user = user;
+        this.role = role;
+    }
+}
+
+/**
+ * 一批变化
+ */
+@Data
+@ApiModel(description = "一批用户/角色变化")
+class ChangeBatch {
+    @ApiModelProperty(value = "按 seq 排序的变化")
+    final List<ChangeEvent> changes;
+    @ApiModelProperty(value = "下次请求的 since", example = "42")
+    final long next;
+}
+
+/**
+ * 变化流控制器
+ */
+@Api(value = "/api", description = "用户/角色变化流的 API")
+@RestController
+@RequestMapping("/api")
+class ChangeController {
+
+    /**
+     * 与 spring.mvc.async.request-timeout 一致
+     */
+    static final long MAX_WAIT_MILLIS = 30_000;
+
+    private final UserChangeFeed feed;
+
+    ChangeController(UserChangeFeed feed) {
+        this.feed = feed;
+    }
+
+    @ApiOperation(value = "增量查询用户/角色的变化",
+            notes = "返回 since 之后的变化（新增、修改、删除、批量角色变化），以及对象当前的状态；用返回的 next 作为下次请求的 since。"
+                    + "不指定 since 时从当前位置开始。wait 大于 0 时为长轮询：没有变化时最多等待 wait 毫秒，超时返回空列表。"
+                    + "变化记录只保留一段时间（api.changes.retention-hours），since 之后的记录已被清理时返回 410，需要重新加载全部数据再从当前位置开始")
+    @ApiResponses({
+            @ApiResponse(code = 200, message = "返回成功", response = ChangeBatch.class),
+            @ApiResponse(code = 410, message = "since 之后的变化已被清理"),
+            @ApiResponse(code = 503, message = "长轮询的请求过多，稍后重试")
+    })
+    @GetMapping("/changes")
+    public DeferredResult<ResponseEntity<ChangeBatch>> getChanges(
+            @ApiParam(name = "since", value = "上次返回的 next，0 表示从保留的最早记录开始读取")
+            @RequestParam(name = "since", required = false) Long since,
+            @ApiParam(name = "limit", value = "最多返回的条数（1..1000）", defaultValue = "100")
+            @RequestParam(name = "limit", defaultValue = "100") int limit,
+            @ApiParam(name = "wait", value = "没有变化时最多等待的毫秒数（0..30000）", defaultValue = "0")
+            @RequestParam(name = "wait", defaultValue = "0") long wait) {
+        long from = since == null ? feed.head() : since;
+        return feed.await(from, Math.max(1, Math.min(limit, UserChangeFeed.MAX_LIMIT)), Math.min(wait, MAX_WAIT_MILLIS));
+    }
+}
@@ -0,0 +1,190 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * 导出用户：从数据库游标逐行读取并直接写出，内存占用与用户总数无关
+ */
+@Component
+class UserExporter {
+
+    /**
+     * 导出格式
+     */
+    enum Format {
+        NDJSON(UserBulkImporter.NDJSON_VALUE),
+        CSV("text/csv");
+
+        final String mediaType;
+
+        Format(String mediaType) {
+            this.mediaType = mediaType;
+        }
+    }
+
+    private final ObjectMapper objectMapper;
+    private final UserRepository userRepository;
+    private final RoleRepository roleRepository;
+    private final TransactionTemplate readOnlyTransaction;
+
+    UserExporter(ObjectMapper objectMapper, UserRepository userRepository, RoleRepository roleRepository,
+                 PlatformTransactionManager transactionManager) {
+        this.objectMapper = objectMapper;
+        this.userRepository = userRepository;
+        this.roleRepository = roleRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    /**
+     * 按 ID 顺序导出匹配关键字的用户
+     *
+     * @param keyword 查询关键字，为空时导出全部用户
+     * @param format  导出格式
+     * @param out     输出流
+     */
+    void export(String keyword, Format format, OutputStream out) throws IOException {
+        // 角色数量很少，预先加载到内存，避免逐行查询
+        Map<Long, String> roleNames = new HashMap<>();
+        roleRepository.findAll().forEach(role -> roleNames.put(role.getId(), role.getName()));
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        RowWriter rowWriter = format == Format.CSV ? new CsvRowWriter(writer) : new NdjsonRowWriter(writer);
+        try {
+            readOnlyTransaction.execute(status -> {
+                try (Stream<Object[]> rows = keyword.isEmpty()
+                        ? userRepository.streamExportRows()
+                        : userRepository.streamExportRowsByKeyword(keyword)) {
+                    writeRows(rows.iterator(), roleNames, rowWriter);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        rowWriter.finish();
+        writer.flush();
+    }
+
+    /**
+     * 行按用户 ID 排序，每个角色一行，合并同一用户的连续行
+     */
+    private static void writeRows(Iterator<Object[]> rows, Map<Long, String> roleNames, RowWriter rowWriter) throws IOException {
+        Object[] current = null;
+        List<String> roles = new ArrayList<>();
+        while (rows.hasNext()) {
+            Object[] row = rows.next();
+            if (current != null && !current[0].equals(row[0])) {
+                rowWriter.write(current, roles);
+                roles.clear();
+            }
+            current = row;
+            if (row[4] != null) {
+                roles.add(roleNames.get((Long) row[4]));
+            }
+        }
+        if (current != null) {
+            rowWriter.write(current, roles);
+        }
+    }
+
+    private interface RowWriter {
+        /**
+         * @param user  依次为 id、login、name、email
+         * @param roles 角色名称
+         */
+        void write(Object[] user, List<String> roles) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private final class NdjsonRowWriter implements RowWriter {
+        private final JsonGenerator generator;
+        private boolean written;
+
+        NdjsonRowWriter(Writer writer) throws IOException {
+            this.generator = objectMapper.getFactory().createGenerator(writer);
+            this.generator.setRootValueSeparator(new SerializedString("\n"));
+        }
+
+        @Override
+        public void write(Object[] user, List<String> roles) throws IOException {
+            generator.writeStartObject();
+            generator.writeNumberField("id", (Long) user[0]);
+            generator.writeStringField("login", (String) user[1]);
+            generator.writeStringField("name", (String) user[2]);
+            generator.writeStringField("email", (String) user[3]);
+            generator.writeArrayFieldStart("roles");
+            for (String role : roles) {
+                generator.writeString(role);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            written = true;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (written) {
+                generator.writeRaw('\n');
+            }
+            generator.flush();
+        }
+    }
+
+    private static final class CsvRowWriter implements RowWriter {
+        private final Writer writer;
+
+        CsvRowWriter(Writer writer) throws IOException {
+            this.writer = writer;
+            writer.write("id,login,name,email,roles\r\n");
+        }
+
+        @Override
+        public void write(Object[] user, List<String> roles) throws IOException {
+            writer.write(String.valueOf(user[0]));
+            for (int i = 1; i < 4; i++) {
+                writer.write(',');
+                writer.write(escape((String) user[i]));
+            }
+            writer.write(',');
+            writer.write(escape(String.join(";", roles)));
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        private static String escape(String value) {
+            if (value == null) {
+                return "";
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package cn.wilmar.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 已存在的登录账号的布隆过滤器：判断为不存在时一定不存在，新建用户时不用查询数据库；
+ * 判断为可能存在时再查询数据库确认（误判率见 api.login-registry.fpp）。
+ * <p>
+ * 插入在 Hibernate 写库时（提交之前）加入，事务回滚只会多一次确认查询；删除的账号无法从过滤器中移除，
+ * 删除数超过 stale-ratio 或账号数超过容量时由 {@link UserLoginRegistryUpdater} 在后台重建。
+ * 并发插入同一账号时仍由 login 的唯一约束兜底，返回 409。
+ * 指标：api.login.registry.checks（result=absent/present/false_positive）、api.login.registry.size
+ */
+@Component
+class UserLoginRegistry {
+
+    private final UserRepository userRepository;
+    private final int expectedLogins;
+    private final double fpp;
+    private final double staleRatio;
+    private final Counter absent;
+    private final Counter present;
+    private final Counter falsePositive;
+
+    private volatile BloomFilter filter;
+    /**
+     * 重建期间新加入的账号同时写入新旧两个过滤器
+     */
+    private volatile BloomFilter building;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+
+    UserLoginRegistry(UserRepository userRepository, MeterRegistry meterRegistry,
+                      @Value("${api.login-registry.expected-logins:100000}") int expectedLogins,
+                      @Value("${api.login-registry.fpp:0.01}") double fpp,
+                      @Value("${api.login-registry.stale-ratio:0.25}") double staleRatio) {
+        this.userRepository = userRepository;
+        this.expectedLogins = expectedLogins;
+        this.fpp = fpp;
+        this.staleRatio = staleRatio;
+        this.filter = new BloomFilter(expectedLogins, fpp);
+        this.absent = checks(meterRegistry, "absent");
+        this.present = checks(meterRegistry, "present");
+        this.falsePositive = checks(meterRegistry, "false_positive");
+        Gauge.builder("api.login.registry.size", this, UserLoginRegistry::size)
+                .description("Logins in the registry, deleted logins excluded")
+                .register(meterRegistry);
+    }
+
+    private static Counter checks(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("api.login.registry.checks")
+                .description("Login existence checks answered by the registry")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 登录账号是否已经存在，过滤器判断为不存在时不查询数据库
+     */
+    boolean exists(String login) {
+        if (!filter.mightContain(login)) {
+            absent.increment();
+            return false;
+        }
+        if (userRepository.existsByLogin(login)) {
+            present.increment();
+            return true;
+        }
+        falsePositive.increment();
+        return false;
+    }
+
+    /**
+     * 过滤掉一定不存在的账号，剩下的需要查询数据库确认
+     */
+    List<String> mightExist(Collection<String> logins) {
+        BloomFilter current = filter;
+        List<String> candidates = logins.stream().filter(current::mightContain).collect(Collectors.toList());
+        absent.increment(logins.size() - candidates.size());
+        return candidates;
+    }
+
+    void add(String login) {
+        filter.put(login);
+        BloomFilter next = building;
+        if (next != null) {
+            next.put(login);
+        }
+        size.incrementAndGet();
+    }
+
+    void removed() {
+        removed.incrementAndGet();
+    }
+
+    /**
+     * 删除的账号太多（误判率上升）或账号数超过容量时需要重建
+     */
+    boolean needsRebuild() {
+        return removed.get() > size.get() * staleRatio || size.get() - removed.get() > filter.capacity;
+    }
+
+    /**
+     * 用数据库中的全部账号重建过滤器，容量至少是当前账号数的两倍
+     *
+     * @param loader 把全部账号交给 consumer
+     */
+    synchronized void rebuild(Consumer<Consumer<String>> loader) {
+        long live = size.get() - removed.get();
+        BloomFilter next = new BloomFilter((int) Math.min(Integer.MAX_VALUE, Math.max(expectedLogins, live * 2)), fpp);
+        building = next;
+        AtomicLong loaded = new AtomicLong();
+        try {
+            loader.accept(login -> {
+                next.put(login);
+                loaded.incrementAndGet();
+            });
+        } finally {
+            building = null;
+        }
+        filter = next;
+        size.set(loaded.get());
+        removed.set(0);
+    }
+
+    long size() {
+        return size.get() - removed.get();
+    }
+
+    /**
+     * 线程安全的布隆过滤器，位数组用 CAS 按位设置。两个独立的哈希值组合出 k 个位置（Kirsch-Mitzenmacher）
+     */
+    static final class BloomFilter {
+
+        final int capacity;
+        private final long bits;
+        private final int hashes;
+        private final AtomicLongArray words;
+
+        BloomFilter(int capacity, double fpp) {
+            this.capacity = Math.max(capacity, 1);
+            long m = (long) Math.ceil(-this.capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.words = new AtomicLongArray((int) ((m + 63) / 64));
+            this.bits = words.length() * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) bits / this.capacity * Math.log(2)));
+        }
+
+        void put(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                long bit = index(h1 + i * h2);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+                while (((current = words.get(word)) & mask) == 0) {
+                    if (words.compareAndSet(word, current, current | mask)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        boolean mightContain(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                long bit = index(h1 + i * h2);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long index(int combined) {
+            return (combined & Integer.MAX_VALUE) % bits;
+        }
+
+        /**
+         * 64 位 FNV-1a，再经 murmur3 的 fmix64 打散
+         */
+        private static long hash(String value) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
+
+/**
+ * 维护 {@link UserLoginRegistry}：启动时从数据库加载全部账号，Hibernate 插入用户时加入，删除提交后计数，
+ * 过期的账号过多或超出容量时在后台重建
+ */
+@Lazy(false)
+@Component
+class UserLoginRegistryUpdater implements PostInsertEventListener, PostCommitDeleteEventListener, DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(UserLoginRegistryUpdater.class);
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final UserRepository userRepository;
+    private final UserLoginRegistry registry;
+    private final TransactionTemplate readOnlyTransaction;
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "login-registry-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+    UserLoginRegistryUpdater(EntityManagerFactory entityManagerFactory, UserRepository userRepository,
+                             UserLoginRegistry registry, PlatformTransactionManager transactionManager) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.userRepository = userRepository;
+        this.registry = registry;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    @PostConstruct
+    void register() {
+        EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, this);
+        rebuild();
+    }
+
+    /**
+     * 从数据库全量重建（绕过 Hibernate 直接写库之后也需要调用）
+     */
+    void rebuild() {
+        long start = System.nanoTime();
+        registry.rebuild(consumer -> readOnlyTransaction.execute(status -> {
+            try (Stream<String> logins = userRepository.streamAllLogins()) {
+                logins.forEach(consumer);
+            }
+            return null;
+        }));
+        logger.debug("Login registry rebuilt with {} logins in {} ms", registry.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof User) {
+            registry.add(((User) event.getEntity()).getLogin());
+            rebuildIfNeeded();
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (event.getEntity() instanceof User) {
+            registry.removed();
+            rebuildIfNeeded();
+        }
+    }
+
+    private void rebuildIfNeeded() {
+        if (registry.needsRebuild() && rebuildScheduled.compareAndSet(false, true)) {
+            rebuilder.execute(() -> {
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    logger.warn("Login registry rebuild failed", e);
+                } finally {
+                    rebuildScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return User.class.equals(persister.getMappedClass());
+    }
+
+    /**
+     * Hibernate 5.2 中仍是抽象方法（拼写错误的旧名称），转到 {@link #requiresPostCommitHandling(EntityPersister)}
+     */
+    @Deprecated
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return requiresPostCommitHandling(persister);
+    }
+
+    @Override
+    public void destroy() {
+        rebuilder.shutdownNow();
+    }
+}
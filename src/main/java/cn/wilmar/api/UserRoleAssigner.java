@@ -0,0 +1,246 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Data;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.AuditorAware;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 批量授予/撤销角色：在一个事务中对 user_roles 执行集合操作（INSERT ... SELECT / DELETE），
+ * 不加载 User 聚合；重复执行结果不变，并发执行也只有一个请求实际修改同一对（用户, 角色）
+ */
+@Component
+class UserRoleAssigner {
+
+    /**
+     * 每条语句 IN 列表中的用户数
+     */
+    static final int CHUNK_SIZE = 1000;
+    /**
+     * 主键冲突或锁冲突时事务的最多执行次数
+     */
+    static final int MAX_ATTEMPTS = 3;
+    /**
+     * 变化的用户不超过该数时逐个清除缓存，否则清空用户缓存（每个清除都要广播给其他实例）
+     */
+    static final int EVICT_KEYS_LIMIT = 100;
+
+    private final UserRepository userRepository;
+    private final RoleRepository roleRepository;
+    private final UserChangeRepository changeRepository;
+    private final UserChangeFeed changeFeed;
+    private final ClusterSync clusterSync;
+    private final AuditTrail auditTrail;
+    private final TransactionTemplate transactionTemplate;
+    private final AuditorAware<String> auditorAware;
+    private final CacheManager cacheManager;
+
+    UserRoleAssigner(UserRepository userRepository, RoleRepository roleRepository,
+                     UserChangeRepository changeRepository, UserChangeFeed changeFeed,
+                     ClusterSync clusterSync, AuditTrail auditTrail, TransactionTemplate transactionTemplate,
+                     AuditorAware<String> auditorAware, CacheManager cacheManager) {
+        this.userRepository = userRepository;
+        this.roleRepository = roleRepository;
+        this.changeRepository = changeRepository;
+        this.changeFeed = changeFeed;
+        this.clusterSync = clusterSync;
+        this.auditTrail = auditTrail;
+        this.transactionTemplate = transactionTemplate;
+        this.auditorAware = auditorAware;
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * 给用户授予角色，已有的角色不重复添加
+     */
+    RoleAssignmentResult grant(Collection<Long> userIds, Collection<Long> roleIds) {
+        return apply(userIds, roleIds, true);
+    }
+
+    /**
+     * 撤销用户的角色，没有的角色忽略
+     */
+    RoleAssignmentResult revoke(Collection<Long> userIds, Collection<Long> roleIds) {
+        return apply(userIds, roleIds, false);
+    }
+
+    /**
+     * 角色不存在时不做任何修改；不存在的用户被忽略，在结果中返回。
+     * 实际变化的用户版本号加一（ETag 随之变化），记录到变化流（不经过 Hibernate 事件），并清除这些用户的缓存。
+     * 事务先按 ID 顺序锁定用户再判断哪些角色需要修改；数据库的隔离级别没有看到并发插入的行而违反主键时重试整个事务。
+     * 提交之后把变化的（用户, 角色）写入审计日志：只有一对时由修改的行数可知，多对时在修改之前查询（撤销时锁定这些行），
+     * 见 {@link #modify}
+     */
+    private RoleAssignmentResult apply(Collection<Long> userIds, Collection<Long> roleIds, boolean grant) {
+        Set<Long> users = new TreeSet<>(userIds);
+        Set<Long> roles = new TreeSet<>(roleIds);
+        RoleAssignmentResult result = new RoleAssignmentResult();
+        result.setUsers(users.size());
+
+        Set<Long> knownRoles = new HashSet<>();
+        roleRepository.findAll().forEach(role -> knownRoles.add(role.getId()));
+        roles.stream().filter(id -> !knownRoles.contains(id)).forEach(result.getMissingRoleIds()::add);
+        if (!result.getMissingRoleIds().isEmpty()) {
+            return result;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        String auditor = auditorAware.getCurrentAuditor().orElse(null);
+        boolean single = users.size() == 1 && roles.size() == 1;
+        boolean auditPairs = auditTrail.isEnabled() && !single;
+        List<Long[]> pairs = new ArrayList<>();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transactionTemplate.execute(status -> {
+                    pairs.clear();
+                    result.setChangedUsers(0);
+                    result.setChangedRows(0);
+                    result.getMissingUserIds().clear();
+                    modify(users, roles, grant, auditPairs, now, auditor, result, pairs);
+                    return null;
+                });
+                break;
+            } catch (DataIntegrityViolationException | ConcurrencyFailureException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+        if (result.getChangedRows() > 0) {
+            if (single) {
+                pairs.add(new Long[]{users.iterator().next(), roles.iterator().next()});
+            }
+            auditTrail.rolesChanged(pairs, grant, now, auditor);
+        }
+        if (result.getChangedUsers() > 0) {
+            changeFeed.signal();
+            // 角色不影响搜索索引，只需唤醒其他实例的长轮询
+            clusterSync.entitiesChanged(Collections.emptyList());
+        }
+        return result;
+    }
+
+    /**
+     * 在当前事务中修改 user_roles，结果累加到 result，需要审计时把修改的（用户, 角色）放入 pairs。
+     * <p>
+     * 用户已锁定，其他事务只能删除这些用户的 user_roles（删除用户、删除角色），不能插入：
+     * 授予时缺少的对只会增多，撤销时已有的对（已锁定）不会变化。所以预先查询的对数与语句修改的行数相同时，
+     * 两者就是同一组对；不同时说明期间有并发的删除，抛出 {@link ConcurrencyFailureException} 重试整个事务
+     */
+    private void modify(Set<Long> users, Set<Long> roles, boolean grant, boolean auditPairs,
+                        LocalDateTime now, String auditor, RoleAssignmentResult result, List<Long[]> pairs) {
+        Set<Long> existing = new HashSet<>();
+        Set<Long> changed = new TreeSet<>();
+        Set<String> changedLogins = new HashSet<>();
+        for (List<Long> chunk : partition(users)) {
+            existing.addAll(userRepository.lockExistingIds(chunk));
+            List<Object[]> chunkPairs = auditPairs
+                    ? (grant ? userRepository.findMissingUserRoles(chunk, roles) : userRepository.lockUserRoles(chunk, roles))
+                    : Collections.emptyList();
+            chunkPairs.forEach(row -> pairs.add(new Long[]{((Number) row[0]).longValue(), ((Number) row[1]).longValue()}));
+            // 用户已锁定，修改之前查到的就是将发生变化的用户
+            List<Long> touched = new ArrayList<>();
+            for (Object[] row : grant ? userRepository.findUsersMissingRoles(chunk, roles) : userRepository.findUsersHavingRoles(chunk, roles)) {
+                touched.add(((Number) row[0]).longValue());
+                changedLogins.add((String) row[1]);
+            }
+            if (!touched.isEmpty()) {
+                userRepository.touchUsers(touched, now, auditor);
+                changed.addAll(touched);
+            }
+            int rows = grant ? userRepository.insertUserRoles(chunk, roles) : userRepository.deleteUserRoles(chunk, roles);
+            if (auditPairs && rows != chunkPairs.size()) {
+                throw new ConcurrencyFailureException("user_roles changed concurrently: expected " + chunkPairs.size()
+                        + " rows, " + (grant ? "inserted " : "deleted ") + rows);
+            }
+            result.setChangedRows(result.getChangedRows() + rows);
+        }
+        // 最后才写入变化流：seq 分配之后事务很快提交，变化流不会把长时间未提交的 seq 当作回滚的空缺跳过
+        for (List<Long> chunk : partition(changed)) {
+            changeRepository.recordRolesChanged(chunk, now, auditor, clusterSync.nodeId());
+        }
+        evict(changed, changedLogins);
+        result.setChangedUsers(changed.size());
+        users.stream().filter(id -> !existing.contains(id)).forEach(result.getMissingUserIds()::add);
+    }
+
+    /**
+     * 清除变化的用户的缓存，在事务提交之后生效（见 {@link EntityCacheManager}），事务重试时不生效
+     */
+    private void evict(Set<Long> ids, Set<String> logins) {
+        Cache users = cacheManager.getCache(CacheNames.USERS);
+        Cache usersByLogin = cacheManager.getCache(CacheNames.USERS_BY_LOGIN);
+        if (ids.size() > EVICT_KEYS_LIMIT) {
+            users.clear();
+            usersByLogin.clear();
+            return;
+        }
+        ids.forEach(users::evict);
+        logins.forEach(usersByLogin::evict);
+    }
+
+    private static List<List<Long>> partition(Set<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<>();
+        List<Long> chunk = new ArrayList<>(Math.min(ids.size(), CHUNK_SIZE));
+        for (Long id : ids) {
+            chunk.add(id);
+            if (chunk.size() == CHUNK_SIZE) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(CHUNK_SIZE);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
+
+/**
+ * 批量角色分配请求
+ */
+@Data
+@ApiModel(description = "批量角色分配")
+class RoleAssignment {
+    @NotEmpty @ApiModelProperty(value = "用户 ID 集合", example = "[1, 2]")
+    List<@NotNull Long> userIds;
+    @NotEmpty @ApiModelProperty(value = "角色 ID 集合", example = "[2]")
+    List<@NotNull Long> roleIds;
+}
+
+/**
+ * 批量角色分配的结果
+ */
+@Data
+@ApiModel(description = "批量角色分配结果")
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+class RoleAssignmentResult {
+    @ApiModelProperty(value = "请求中的用户数（去重后）")
+    int users;
+    @ApiModelProperty(value = "角色实际发生变化的用户数")
+    int changedUsers;
+    @ApiModelProperty(value = "插入或删除的 user_roles 行数")
+    int changedRows;
+    @ApiModelProperty(value = "不存在的用户 ID，已忽略")
+    List<Long> missingUserIds = new ArrayList<>();
+    @ApiModelProperty(value = "不存在的角色 ID，存在时不做任何修改")
+    List<Long> missingRoleIds = new ArrayList<>();
+}
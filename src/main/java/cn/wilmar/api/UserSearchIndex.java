@@ -0,0 +1,555 @@
+package cn.wilmar.api;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 用户关键字搜索索引：对 login、name、email 的小写形式建立三元组（trigram）倒排索引，
+ * 代替 LOWER(x) LIKE '%keyword%' 的全表扫描
+ */
+@Component
+class UserSearchIndex {
+
+    private static final int GRAM = 3;
+
+    /**
+     * 当前的索引数据，重建时整体替换，查询开始时读取一次
+     */
+    private volatile Snapshot current = new Snapshot();
+    /**
+     * 重建期间的增量修改（null 表示删除），替换之前重放到新数据上；不在重建时为 null。由 this 保护
+     */
+    private Map<Long, Entry> pending;
+    private final Object rebuildLock = new Object();
+
+    /**
+     * 新增或更新用户的索引条目
+     */
+    void put(User user) {
+        put(user.getId(), user.getLogin(), user.getName(), user.getEmail());
+    }
+
+    /**
+     * @return 之前没有该用户的条目时返回 true
+     */
+    synchronized boolean put(Long id, String login, String name, String email) {
+        Entry entry = new Entry(id, login, name, email);
+        if (pending != null) {
+            pending.put(id, entry);
+        }
+        return current.put(entry);
+    }
+
+    /**
+     * 删除用户的索引条目
+     *
+     * @return 有该用户的条目时返回 true
+     */
+    synchronized boolean remove(Long id) {
+        if (pending != null) {
+            pending.put(id, null);
+        }
+        return current.remove(id);
+    }
+
+    /**
+     * 在新的数据上重建索引，完成后整体替换；重建期间查询继续使用原来的数据，
+     * 期间的增量修改同时记录下来，替换之前重放到新数据上
+     *
+     * @param loader 把全部用户的 id、login、name、email 逐行交给 consumer
+     */
+    void rebuild(Consumer<Consumer<Object[]>> loader) {
+        synchronized (rebuildLock) {
+            synchronized (this) {
+                pending = new HashMap<>();
+            }
+            Snapshot next = new Snapshot();
+            try {
+                loader.accept(row -> next.put(new Entry((Long) row[0], (String) row[1], (String) row[2], (String) row[3])));
+                synchronized (this) {
+                    pending.forEach((id, entry) -> {
+                        if (entry == null) {
+                            next.remove(id);
+                        } else {
+                            next.put(entry);
+                        }
+                    });
+                    current = next;
+                }
+            } finally {
+                synchronized (this) {
+                    pending = null;
+                }
+            }
+        }
+    }
+
+    int size() {
+        return current.count.get();
+    }
+
+    /**
+     * 索引中该用户的登录名，没有该用户时返回 null
+     */
+    String login(Long id) {
+        Entry entry = current.entries.get(id);
+        return entry == null ? null : entry.login;
+    }
+
+    /**
+     * 根据关键字查询用户 ID，未指定排序时按 ID 升序，sort=score,desc 按匹配度排序
+     * <p>
+     * 无关键字且按 ID 排序时直接按 ID 顺序跳过 offset 条取一页；其余情况分页时用大小为 offset + size 的堆保留前 k 条，
+     * 不对全部匹配结果排序
+     *
+     * @param keyword  查询关键字，为空时返回全部用户
+     * @param pageable 用户指定的分页信息
+     * @return 返回 Page 对象包含用户 ID 集合和分页信息
+     */
+    Page<Long> search(String keyword, Pageable pageable) {
+        String kw = keyword == null ? "" : keyword.toLowerCase(Locale.ROOT);
+        Snapshot snapshot = current;
+        Sort.Direction idOrder = idOrder(pageable.getSort());
+        if (kw.isEmpty() && idOrder != null && pageable.isPaged()) {
+            return pageById(snapshot, pageable, idOrder == Sort.Direction.DESC);
+        }
+        Comparator<Hit> comparator = comparator(pageable.getSort());
+        if (pageable.isUnpaged()) {
+            List<Hit> hits = new ArrayList<>();
+            for (Entry entry : snapshot.candidates(kw)) {
+                int score = entry.score(kw);
+                if (score > 0) {
+                    hits.add(new Hit(entry, score));
+                }
+            }
+            hits.sort(comparator);
+            return new PageImpl<>(ids(hits), pageable, hits.size());
+        }
+        // 堆顶是当前保留的最后一条，新的匹配排在它之前时替换
+        long limit = pageable.getOffset() + pageable.getPageSize();
+        int capacity = (int) Math.min(limit, Integer.MAX_VALUE - 1);
+        PriorityQueue<Hit> top = new PriorityQueue<>(Math.min(capacity, 1024) + 1, comparator.reversed());
+        int total = 0;
+        for (Entry entry : snapshot.candidates(kw)) {
+            int score = entry.score(kw);
+            if (score > 0) {
+                total++;
+                top.offer(new Hit(entry, score));
+                if (top.size() > capacity) {
+                    top.poll();
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(comparator);
+        int from = (int) Math.min(pageable.getOffset(), hits.size());
+        return new PageImpl<>(ids(hits.subList(from, hits.size())), pageable, total);
+    }
+
+    /**
+     * 全部用户按 ID 顺序分页，与数据库 LIMIT/OFFSET 一样跳过前 offset 条
+     */
+    private static Page<Long> pageById(Snapshot snapshot, Pageable pageable, boolean descending) {
+        Collection<Entry> ordered = descending ? snapshot.entries.descendingMap().values() : snapshot.entries.values();
+        List<Long> ids = new ArrayList<>(pageable.getPageSize());
+        long skip = pageable.getOffset();
+        for (Entry entry : ordered) {
+            if (skip > 0) {
+                skip--;
+            } else if (ids.size() < pageable.getPageSize()) {
+                ids.add(entry.id);
+            } else {
+                break;
+            }
+        }
+        return new PageImpl<>(ids, pageable, snapshot.count.get());
+    }
+
+    /**
+     * 游标（keyset）分页：按 ID 升序返回大于 afterId 的匹配用户 ID，不计算总数
+     *
+     * @param keyword 查询关键字
+     * @param afterId 上一页最后一个用户 ID
+     * @param size    每页的记录数
+     * @return 返回 Slice 对象包含用户 ID 集合和是否有下一页
+     */
+    Slice<Long> searchAfter(String keyword, long afterId, int size) {
+        String kw = keyword == null ? "" : keyword.toLowerCase(Locale.ROOT);
+        Snapshot snapshot = current;
+        // 大顶堆只保留最小的 size + 1 个 ID
+        PriorityQueue<Long> top = new PriorityQueue<>(size + 1, Comparator.reverseOrder());
+        for (Entry entry : snapshot.candidates(kw)) {
+            if (entry.id > afterId && entry.score(kw) > 0) {
+                top.offer(entry.id);
+                if (top.size() > size + 1) {
+                    top.poll();
+                }
+            }
+        }
+        List<Long> ids = new ArrayList<>(top);
+        Collections.sort(ids);
+        boolean hasNext = ids.size() > size;
+        return new SliceImpl<>(hasNext ? ids.subList(0, size) : ids, PageRequest.of(0, size), hasNext);
+    }
+
+    private static List<Long> ids(List<Hit> hits) {
+        return hits.stream().map(hit -> hit.entry.id).collect(Collectors.toList());
+    }
+
+    private static Set<String> grams(String... values) {
+        Set<String> grams = new HashSet<>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            for (int i = 0; i + GRAM <= value.length(); i++) {
+                grams.add(value.substring(i, i + GRAM));
+            }
+        }
+        return grams;
+    }
+
+    private static String lower(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 排序只有 id（或未指定）时返回 ID 的方向，否则返回 null
+     */
+    private static Sort.Direction idOrder(Sort sort) {
+        Sort.Direction direction = Sort.Direction.ASC;
+        for (Sort.Order order : sort) {
+            if (!"id".equals(order.getProperty())) {
+                return null;
+            }
+            direction = order.getDirection();
+        }
+        return direction;
+    }
+
+    /**
+     * 按 Sort 中的 id/login/name/email/score 排序（前四个与数据库排序一致），最后按 ID
+     */
+    @SuppressWarnings("rawtypes")
+    private static Comparator<Hit> comparator(Sort sort) {
+        Comparator<Hit> comparator = null;
+        for (Sort.Order order : sort) {
+            Comparator<Hit> next;
+            if ("score".equals(order.getProperty())) {
+                next = Comparator.comparingInt(hit -> hit.score);
+            } else {
+                Function<Entry, Comparable> key = sortKey(order.getProperty());
+                if (key == null) {
+                    continue;
+                }
+                next = (a, b) -> compareNullsFirst(key.apply(a.entry), key.apply(b.entry));
+            }
+            if (order.isDescending()) {
+                next = next.reversed();
+            }
+            comparator = comparator == null ? next : comparator.thenComparing(next);
+        }
+        Comparator<Hit> byId = Comparator.comparing(hit -> hit.entry.id);
+        return comparator == null ? byId : comparator.thenComparing(byId);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static int compareNullsFirst(Comparable a, Comparable b) {
+        if (a == null || b == null) {
+            return a == b ? 0 : (a == null ? -1 : 1);
+        }
+        return a.compareTo(b);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Function<Entry, Comparable> sortKey(String property) {
+        switch (property) {
+            case "id":
+                return entry -> entry.id;
+            case "login":
+                return entry -> entry.login;
+            case "name":
+                return entry -> entry.name;
+            case "email":
+                return entry -> entry.email;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 索引数据。条目和倒排列表是并发容器，查询时不加锁；修改由 {@link UserSearchIndex} 的锁串行化
+     */
+    private static final class Snapshot {
+        /**
+         * 用户 ID -> 索引条目，按 ID 排序，无关键字时直接按 ID 顺序分页
+         */
+        final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+        /**
+         * 条目数（ConcurrentSkipListMap.size() 需要遍历）
+         */
+        final AtomicInteger count = new AtomicInteger();
+        /**
+         * 三元组 -> 包含它的用户 ID 集合
+         */
+        final Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+
+        boolean put(Entry entry) {
+            Long id = entry.id;
+            Entry old = entries.put(id, entry);
+            if (old == null) {
+                count.incrementAndGet();
+            } else {
+                old.grams.stream().filter(gram -> !entry.grams.contains(gram)).forEach(gram -> unlink(gram, id));
+            }
+            entry.grams.forEach(gram -> postings.computeIfAbsent(gram, g -> ConcurrentHashMap.newKeySet()).add(id));
+            return old == null;
+        }
+
+        boolean remove(Long id) {
+            Entry old = entries.remove(id);
+            if (old != null) {
+                count.decrementAndGet();
+                old.grams.forEach(gram -> unlink(gram, id));
+            }
+            return old != null;
+        }
+
+        /**
+         * 候选集：取关键字各三元组中最短的倒排列表，最终由 {@link Entry#score(String)} 精确校验
+         */
+        Collection<Entry> candidates(String kw) {
+            if (kw.length() < GRAM) {
+                return entries.values();
+            }
+            Set<Long> smallest = null;
+            for (String gram : grams(kw)) {
+                Set<Long> ids = postings.get(gram);
+                if (ids == null) {
+                    return Collections.emptyList();
+                }
+                if (smallest == null || ids.size() < smallest.size()) {
+                    smallest = ids;
+                }
+            }
+            List<Entry> result = new ArrayList<>();
+            for (Long id : smallest) {
+                Entry entry = entries.get(id);
+                if (entry != null) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        }
+
+        private void unlink(String gram, Long id) {
+            Set<Long> ids = postings.get(gram);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(gram, ids);
+                }
+            }
+        }
+    }
+
+    /**
+     * 索引条目，保存原值（用于排序）和小写值（用于匹配）
+     */
+    private static final class Entry {
+        final Long id;
+        final String login;
+        final String name;
+        final String email;
+        final String loginLower;
+        final String nameLower;
+        final String emailLower;
+        final Set<String> grams;
+
+        Entry(Long id, String login, String name, String email) {
+            this.id = id;
+            this.login = login;
+            this.name = name;
+            this.email = email;
+            this.loginLower = lower(login);
+            this.nameLower = lower(name);
+            this.emailLower = lower(email);
+            this.grams = grams(loginLower, nameLower, emailLower);
+        }
+
+        /**
+         * 匹配度：login 完全匹配 > login 前缀 > name 前缀 > login 包含 > name 包含 > email 包含，0 表示不匹配
+         */
+        int score(String kw) {
+            if (kw.isEmpty()) {
+                return 1;
+            }
+            if (kw.equals(loginLower)) {
+                return 6;
+            }
+            if (loginLower != null && loginLower.startsWith(kw)) {
+                return 5;
+            }
+            if (nameLower != null && nameLower.startsWith(kw)) {
+                return 4;
+            }
+            if (loginLower != null && loginLower.contains(kw)) {
+                return 3;
+            }
+            if (nameLower != null && nameLower.contains(kw)) {
+                return 2;
+            }
+            if (emailLower != null && emailLower.contains(kw)) {
+                return 1;
+            }
+            return 0;
+        }
+    }
+
+    private static final class Hit {
+        final Entry entry;
+        final int score;
+
+        Hit(Entry entry, int score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+}
+
+/**
+ * 在事务提交后增量维护 {@link UserSearchIndex}，启动时从数据库重建索引
+ */
+@Lazy(false)
+@Component
+class UserSearchIndexUpdater implements PostCommitInsertEventListener, PostCommitUpdateEventListener, PostCommitDeleteEventListener {
+
+    private final Logger logger = LoggerFactory.getLogger(UserSearchIndexUpdater.class);
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final UserRepository userRepository;
+    private final UserSearchIndex index;
+    private final TransactionTemplate readOnlyTransaction;
+
+    UserSearchIndexUpdater(EntityManagerFactory entityManagerFactory, UserRepository userRepository, UserSearchIndex index,
+                           PlatformTransactionManager transactionManager) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.userRepository = userRepository;
+        this.index = index;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    @PostConstruct
+    void register() {
+        EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, this);
+        registry.appendListeners(EventType.POST_COMMIT_UPDATE, this);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, this);
+        rebuild();
+    }
+
+    /**
+     * 从数据库全量重建索引（绕过 Hibernate 直接写库之后也需要调用），流式读取，重建期间查询仍使用原来的索引
+     */
+    void rebuild() {
+        long start = System.nanoTime();
+        index.rebuild(consumer -> readOnlyTransaction.execute(status -> {
+            try (Stream<Object[]> rows = userRepository.streamAllSearchFields()) {
+                rows.forEach(consumer);
+            }
+            return null;
+        }));
+        logger.debug("User search index rebuilt with {} users in {} ms", index.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof User) {
+            index.put((User) event.getEntity());
+        }
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (event.getEntity() instanceof User) {
+            index.put((User) event.getEntity());
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (event.getEntity() instanceof User) {
+            index.remove((Long) event.getId());
+        }
+    }
+
+    @Override
+    public void onPostInsertCommitFailed(PostInsertEvent event) {
+    }
+
+    @Override
+    public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+    }
+
+    @Override
+    public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return User.class.equals(persister.getMappedClass());
+    }
+
+    /**
+     * Hibernate 5.2 中仍是抽象方法（拼写错误的旧名称），转到 {@link #requiresPostCommitHandling(EntityPersister)}
+     */
+    @Deprecated
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return requiresPostCommitHandling(persister);
+    }
+}
@@ -0,0 +1,438 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Value;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 列表接口返回的用户视图：只包含对外公开的字段，由标量查询直接构造，不经过实体加载；
+ * JSON 结构与 User 相同，使用预编码字段名的序列化器，不经过反射
+ */
+@Value
+@ApiModel(description = "用户")
+@JsonSerialize(using = UserView.Serializer.class)
+class UserView {
+    @ApiModelProperty(value = "用户 ID", example = "1")
+    Long id;
+    @ApiModelProperty(value = "用户姓名", example = "Yin Guo Wei")
+    String name;
+    @ApiModelProperty(value = "登录账号", example = "yinguowei")
+    String login;
+    @ApiModelProperty(value = "邮箱", example = "yinguowei@cn.wilmar-intl.com")
+    String email;
+    @ApiModelProperty(value = "用户的角色")
+    List<RoleView> roles;
+
+    static final class Serializer extends StdSerializer<UserView> {
+        private static final long serialVersionUID = 1L;
+
+        private static final SerializedString ID = new SerializedString("id");
+        private static final SerializedString NAME = new SerializedString("name");
+        private static final SerializedString LOGIN = new SerializedString("login");
+        private static final SerializedString EMAIL = new SerializedString("email");
+        private static final SerializedString ROLES = new SerializedString("roles");
+
+        Serializer() {
+            super(UserView.class);
+        }
+
+        @Override
+        public void serialize(UserView user, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeFieldName(ID);
+            generator.writeNumber(user.id);
+            writeString(generator, NAME, user.name);
+            writeString(generator, LOGIN, user.login);
+            writeString(generator, EMAIL, user.email);
+            generator.writeFieldName(ROLES);
+            generator.writeStartArray();
+            for (RoleView role : user.roles) {
+                role.write(generator);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        private static void writeString(JsonGenerator generator, SerializedString field, String value) throws IOException {
+            generator.writeFieldName(field);
+            if (value == null) {
+                generator.writeNull();
+            } else {
+                generator.writeString(value);
+            }
+        }
+    }
+}
+
+/**
+ * 角色视图，名称和代码预先编码为 JSON 字符串
+ */
+@Getter
+@ApiModel(description = "角色")
+@JsonSerialize(using = RoleView.Serializer.class)
+final class RoleView {
+    private static final SerializedString ID = new SerializedString("id");
+    private static final SerializedString NAME = new SerializedString("name");
+    private static final SerializedString CODE = new SerializedString("code");
+
+    @ApiModelProperty(value = "角色 ID", example = "1")
+    private final Long id;
+    @ApiModelProperty(value = "角色名称", example = "Administrator")
+    private final String name;
+    @ApiModelProperty(value = "角色代码", example = "ADMIN")
+    private final RoleCode code;
+
+    @Getter(AccessLevel.NONE)
+    private final SerializedString encodedName;
+    @Getter(AccessLevel.NONE)
+    private final SerializedString encodedCode;
+
+    RoleView(Role role) {
+        this.id = role.getId();
+        this.name = role.getName();
+        this.code = role.getCode();
+        this.encodedName = new SerializedString(name);
+        this.encodedCode = new SerializedString(code.name());
+    }
+
+    void write(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeFieldName(ID);
+        generator.writeNumber(id);
+        generator.writeFieldName(NAME);
+        generator.writeString(encodedName);
+        generator.writeFieldName(CODE);
+        generator.writeString(encodedCode);
+        generator.writeEndObject();
+    }
+
+    static final class Serializer extends StdSerializer<RoleView> {
+        private static final long serialVersionUID = 1L;
+
+        Serializer() {
+            super(RoleView.class);
+        }
+
+        @Override
+        public void serialize(RoleView role, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            role.write(generator);
+        }
+    }
+}
+
+/**
+ * 构造 {@link UserView} 和 {@link RoleView}：用户一次标量查询，角色取自缓存
+ */
+@Component
+class UserViews {
+
+    private final UserRepository userRepository;
+    private final RoleRepository roleRepository;
+
+    /**
+     * 角色缓存的结果不变时复用已构造的角色视图
+     */
+    private volatile RoleViews roleViews = new RoleViews(Collections.emptyList(), Collections.emptyMap());
+
+    UserViews(UserRepository userRepository, RoleRepository roleRepository) {
+        this.userRepository = userRepository;
+        this.roleRepository = roleRepository;
+    }
+
+    /**
+     * 根据 ID 列表查询用户视图，并保持 ID 列表的顺序
+     *
+     * @param ids 用户 ID 列表
+     * @return 用户视图集合，不存在的 ID 被忽略
+     */
+    List<UserView> findAllByIdInOrder(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, RoleView> roles = roleViews().byId;
+        Map<Long, UserView> users = new HashMap<>(ids.size() * 2);
+        for (Object[] row : userRepository.findViewRowsByIdIn(ids)) {
+            UserView user = users.computeIfAbsent((Long) row[0],
+                    id -> new UserView(id, (String) row[2], (String) row[1], (String) row[3], new ArrayList<>(1)));
+            RoleView role = row[4] == null ? null : roles.get((Long) row[4]);
+            if (role != null) {
+                user.getRoles().add(role);
+            }
+        }
+        return ids.stream().map(users::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 根据 ID 列表查询用户的部分字段，并保持 ID 列表的顺序，不加载实体
+     *
+     * @param ids     用户 ID 列表
+     * @param fields  选择的字段
+     * @param version 是否查询版本号（用于 ETag）
+     * @return 用户视图集合，不存在的 ID 被忽略
+     */
+    List<PartialUserView> findAllByIdInOrder(List<Long> ids, Set<UserField> fields, boolean version) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        boolean withRoles = fields.contains(UserField.ROLES);
+        Map<Long, RoleView> roles = withRoles ? roleViews().byId : Collections.emptyMap();
+        int rolesColumn = withRoles ? 1 + columnOf(fields, UserField.ROLES) : -1;
+        Map<Long, PartialUserView> users = new HashMap<>(ids.size() * 2);
+        for (Object[] row : userRepository.findFieldsByIdIn(ids, fields, version)) {
+            PartialUserView user = users.computeIfAbsent((Long) row[0], id -> {
+                Object[] values = new Object[UserField.values().length];
+                int column = 1;
+                for (UserField field : fields) {
+                    if (field != UserField.ID && field != UserField.ROLES) {
+                        values[field.ordinal()] = row[column];
+                    }
+                    if (field != UserField.ID) {
+                        column++;
+                    }
+                }
+                return new PartialUserView(fields, id, values, withRoles ? new ArrayList<>(1) : null,
+                        version ? (Long) row[row.length - 1] : null);
+            });
+            if (withRoles) {
+                Object roleId = row[rolesColumn];
+                RoleView role = roleId == null ? null : roles.get((Long) roleId);
+                if (role != null) {
+                    user.roles.add(role);
+                }
+            }
+        }
+        return ids.stream().map(users::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 字段在查询结果中的位置（不含 u.id）
+     */
+    private static int columnOf(Set<UserField> fields, UserField target) {
+        int column = 0;
+        for (UserField field : fields) {
+            if (field == target) {
+                return column;
+            }
+            if (field != UserField.ID) {
+                column++;
+            }
+        }
+        throw new IllegalArgumentException(target + " is not selected");
+    }
+
+    /**
+     * 全部角色视图
+     */
+    List<RoleView> roles() {
+        return new ArrayList<>(roleViews().byId.values());
+    }
+
+    private RoleViews roleViews() {
+        Iterable<Role> roles = roleRepository.findAll();
+        RoleViews current = roleViews;
+        if (current.source != roles) {
+            Map<Long, RoleView> byId = new LinkedHashMap<>();
+            roles.forEach(role -> byId.put(role.getId(), new RoleView(role)));
+            current = new RoleViews(roles, byId);
+            roleViews = current;
+        }
+        return current;
+    }
+
+    private static final class RoleViews {
+        final Iterable<Role> source;
+        final Map<Long, RoleView> byId;
+
+        RoleViews(Iterable<Role> source, Map<Long, RoleView> byId) {
+            this.source = source;
+            this.byId = byId;
+        }
+    }
+}
+
+/**
+ * fields 参数可以选择的用户字段，按声明顺序输出
+ */
+enum UserField {
+    ID("id", "u.id"),
+    NAME("name", "u.name"),
+    LOGIN("login", "u.login"),
+    EMAIL("email", "u.email"),
+    ROLES("roles", "r.id");
+
+    final SerializedString jsonName;
+    final String column;
+
+    UserField(String jsonName, String column) {
+        this.jsonName = new SerializedString(jsonName);
+        this.column = column;
+    }
+
+    /**
+     * 解析逗号分隔的字段名（不区分大小写）
+     *
+     * @return 选择的字段，不会为空
+     * @throws IllegalArgumentException 字段名不存在或没有选择任何字段
+     */
+    static Set<UserField> parse(String fields) {
+        Set<UserField> selected = EnumSet.noneOf(UserField.class);
+        for (String field : fields.split(",")) {
+            String name = field.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            UserField match = null;
+            for (UserField value : values()) {
+                if (value.jsonName.getValue().equalsIgnoreCase(name)) {
+                    match = value;
+                }
+            }
+            if (match == null) {
+                throw new IllegalArgumentException("Unknown user field: " + name);
+            }
+            selected.add(match);
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("No user field selected");
+        }
+        return selected;
+    }
+}
+
+/**
+ * 按 fields 参数选择字段的用户视图：只查询并输出选择的字段
+ */
+@JsonSerialize(using = PartialUserView.Serializer.class)
+final class PartialUserView {
+
+    final Set<UserField> fields;
+    final Long id;
+    final Object[] values;
+    final List<RoleView> roles;
+    /**
+     * 版本号只用于生成 ETag，不输出
+     */
+    final Long version;
+
+    PartialUserView(Set<UserField> fields, Long id, Object[] values, List<RoleView> roles, Long version) {
+        this.fields = fields;
+        this.id = id;
+        this.values = values;
+        this.roles = roles;
+        this.version = version;
+    }
+
+    static final class Serializer extends StdSerializer<PartialUserView> {
+        private static final long serialVersionUID = 1L;
+
+        Serializer() {
+            super(PartialUserView.class);
+        }
+
+        @Override
+        public void serialize(PartialUserView user, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            for (UserField field : user.fields) {
+                generator.writeFieldName(field.jsonName);
+                if (field == UserField.ROLES) {
+                    generator.writeStartArray();
+                    for (RoleView role : user.roles) {
+                        role.write(generator);
+                    }
+                    generator.writeEndArray();
+                } else if (field == UserField.ID) {
+                    generator.writeNumber(user.id);
+                } else {
+                    String value = (String) user.values[field.ordinal()];
+                    if (value == null) {
+                        generator.writeNull();
+                    } else {
+                        generator.writeString(value);
+                    }
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+}
+
+/**
+ * {@link UserRepository} 的扩展：按选择的字段动态生成投影查询
+ */
+interface UserFieldsRepository {
+
+    /**
+     * 只查询选择的列；选择了角色时才连接角色表，每个角色一行
+     *
+     * @param ids     用户 ID
+     * @param fields  选择的字段
+     * @param version 是否同时查询版本号
+     * @return 每行依次为 u.id、选择的列（角色为 r.id）、u.version（如果查询）；只查询 u.id 时每行也是数组
+     */
+    List<Object[]> findFieldsByIdIn(Collection<Long> ids, Set<UserField> fields, boolean version);
+}
+
+class UserFieldsRepositoryImpl implements UserFieldsRepository {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * 字段组合很少，生成的 JPQL 复用同一个字符串，Hibernate 的查询计划缓存也能命中
+     */
+    private final Map<String, String> queries = new ConcurrentHashMap<>();
+
+    @Override
+    public List<Object[]> findFieldsByIdIn(Collection<Long> ids, Set<UserField> fields, boolean version) {
+        String key = fields.toString() + version;
+        String jpql = queries.computeIfAbsent(key, k -> jpql(fields, version));
+        List<?> rows = entityManager.createQuery(jpql).setParameter("ids", ids).getResultList();
+        List<Object[]> result = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            // 只有一列（fields=id）时 Hibernate 返回的是该列的值而不是数组
+            result.add(row instanceof Object[] ? (Object[]) row : new Object[]{row});
+        }
+        return result;
+    }
+
+    private static String jpql(Set<UserField> fields, boolean version) {
+        StringBuilder select = new StringBuilder("SELECT u.id");
+        for (UserField field : fields) {
+            if (field != UserField.ID) {
+                select.append(", ").append(field.column);
+            }
+        }
+        if (version) {
+            select.append(", u.version");
+        }
+        select.append(" FROM User u");
+        if (fields.contains(UserField.ROLES)) {
+            select.append(" LEFT JOIN u.roles r");
+        }
+        return select.append(" WHERE u.id IN :ids").toString();
+    }
+}
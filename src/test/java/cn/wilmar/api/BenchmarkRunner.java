@@ -0,0 +1,41 @@
+package cn.wilmar.api;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 运行 JMH 基准测试并输出 JSON 结果，便于不同版本之间对比
+ * <p>
+ * 系统属性：
+ * <ul>
+ * <li>benchmark.include：要运行的基准测试（正则），默认全部</li>
+ * <li>benchmark.users、benchmark.roles：覆盖各基准测试的数据量参数</li>
+ * <li>benchmark.result：结果文件，默认 target/jmh-result.json</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(property("benchmark.include", ".*Benchmark"))
+                .resultFormat(ResultFormatType.JSON)
+                .result(property("benchmark.result", "target/jmh-result.json"));
+        String users = property("benchmark.users", "");
+        if (!users.isEmpty()) {
+            options.param("users", users.split(","));
+        }
+        String roles = property("benchmark.roles", "");
+        if (!roles.isEmpty()) {
+            options.param("roles", roles.split(","));
+        }
+        new Runner(options.build()).run();
+    }
+
+    private static String property(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+}
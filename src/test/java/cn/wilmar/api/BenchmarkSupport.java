@@ -0,0 +1,96 @@
+package cn.wilmar.api;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试公共工具：启动应用并向 H2 数据源写入指定数量的用户和角色
+ */
+final class BenchmarkSupport {
+
+    /**
+     * 直接写库的用户和角色 ID 起点，避开 user_seq、role_seq 分配的 ID
+     */
+    static final long SEED_ID_OFFSET = 100_000_000L;
+
+    private static final int BATCH_SIZE = 10_000;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 启动应用（随机端口、独立的内存数据库）。配置项以命令行参数传入，优先于 application.properties 和 profile 配置
+     *
+     * @param database   内存数据库名称
+     * @param properties 额外的配置项
+     */
+    static ConfigurableApplicationContext start(String database, String... properties) {
+        String url = "jdbc:h2:mem:" + database + ";DB_CLOSE_ON_EXIT=FALSE";
+        String[] args = Stream.concat(Stream.of(
+                "server.port=0",
+                "spring.datasource.url=" + url,
+                "spring.jpa.show-sql=false",
+                "api.rate-limit.enabled=false",
+                "logging.level.root=warn",
+                "logging.level.cn.wilmar=warn"), Stream.of(properties))
+                .map(property -> "--" + property)
+                .toArray(String[]::new);
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(RestfulApiDemoApplication.class).run(args);
+        // 配置没有生效时（例如被 application.properties 覆盖）各基准测试会共用同一个数据库并打印 SQL，结果没有意义
+        String actualUrl = context.getBean(HikariDataSource.class).getJdbcUrl();
+        boolean showSql = context.getEnvironment().getProperty("spring.jpa.show-sql", Boolean.class, false);
+        if (!url.equals(actualUrl) || showSql) {
+            context.close();
+            throw new IllegalStateException("Benchmark settings were overridden: datasource " + actualUrl + ", show-sql " + showSql);
+        }
+        return context;
+    }
+
+    /**
+     * 写入用户和角色，ID 为 SEED_ID_OFFSET + i，登录账号为 user + 7 位序号，每个用户分配一个角色
+     */
+    static void seed(ConfigurableApplicationContext context, int users, int roles) {
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        List<Object[]> batch = new ArrayList<>();
+        for (int i = 0; i < roles; i++) {
+            batch.add(new Object[]{SEED_ID_OFFSET + i, "Role " + i, i == 0 ? RoleCode.ADMIN.name() : RoleCode.USER.name()});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO role (id, name, code) VALUES (?, ?, ?)", batch);
+        List<Long> roleIds = jdbcTemplate.queryForList("SELECT id FROM role ORDER BY id", Long.class);
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> userBatch = new ArrayList<>();
+        List<Object[]> roleBatch = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            long id = SEED_ID_OFFSET + i;
+            String login = login(i);
+            userBatch.add(new Object[]{id, "User " + i, login, login + "@example.com", 0L, now, "system"});
+            roleBatch.add(new Object[]{id, roleIds.get(i % roleIds.size())});
+            if (userBatch.size() == BATCH_SIZE || i == users - 1) {
+                jdbcTemplate.batchUpdate(
+                        "INSERT INTO user (id, name, login, email, version, created_date, created_by) VALUES (?, ?, ?, ?, ?, ?, ?)", userBatch);
+                jdbcTemplate.batchUpdate("INSERT INTO user_roles (user_id, roles_id) VALUES (?, ?)", roleBatch);
+                userBatch.clear();
+                roleBatch.clear();
+            }
+        }
+        // 直接写库绕过了 Hibernate 事件和缓存注解，需要重建索引并清空缓存
+        context.getBean(UserSearchIndexUpdater.class).rebuild();
+        context.getBean(UserLoginRegistryUpdater.class).rebuild();
+        CacheManager cacheManager = context.getBean(CacheManager.class);
+        cacheManager.getCacheNames().forEach(name -> cacheManager.getCache(name).clear());
+    }
+
+    static String login(int i) {
+        return String.format("user%07d", i);
+    }
+}
@@ -0,0 +1,120 @@
+package cn.wilmar.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 并发请求下同步模式（每个请求占用一个 Tomcat 线程）与异步模式（api.async.enabled，批量授予角色在独立线程池中执行）的吞吐量对比，
+ * 通过真实的 HTTP 连接访问，Tomcat 线程数远小于并发客户端数。读接口在两种模式下都同步执行，对比的是批量写入对它们的影响
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Dbenchmark.include=ConcurrentApiBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dhttp.maxConnections=256"})
+@Threads(128)
+@State(Scope.Benchmark)
+public class ConcurrentApiBenchmark {
+
+    @Param({"10000"})
+    int users;
+
+    @Param({"false", "true"})
+    boolean async;
+
+    @Param({"16"})
+    int tomcatThreads;
+
+    @Param({"00421"})
+    String keyword;
+
+    private ConfigurableApplicationContext context;
+    private String baseUrl;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkSupport.start("concurrent" + users + async,
+                "api.async.enabled=" + async,
+                "server.tomcat.max-threads=" + tomcatThreads);
+        BenchmarkSupport.seed(context, users, 10);
+        baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/api";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int getUser() throws IOException {
+        return get("/users/" + (BenchmarkSupport.SEED_ID_OFFSET + ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    @Benchmark
+    public int queryUsers() throws IOException {
+        return get("/users?keyword=" + keyword);
+    }
+
+    @Benchmark
+    public int grantRoles() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder userIds = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            userIds.append(i == 0 ? "" : ",").append(BenchmarkSupport.SEED_ID_OFFSET + random.nextInt(users));
+        }
+        String body = "{\"userIds\": [" + userIds + "], \"roleIds\": [" + (BenchmarkSupport.SEED_ID_OFFSET + random.nextInt(10)) + "]}";
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/users/roles/grant").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return read(connection);
+    }
+
+    private int get(String path) throws IOException {
+        return read((HttpURLConnection) new URL(baseUrl + path).openConnection());
+    }
+
+    /**
+     * 读完响应体以复用 keep-alive 连接，返回读取的字节数
+     */
+    private static int read(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        int bytes = 0;
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    bytes += n;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,70 @@
+package cn.wilmar.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 关键字搜索性能对比：三元组索引 vs JPQL LIKE 查询
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Dbenchmark.include=KeywordSearchBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class KeywordSearchBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int users;
+
+    @Param({"00421"})
+    String keyword;
+
+    private final Pageable page = PageRequest.of(0, 10);
+
+    private ConfigurableApplicationContext context;
+    private UserRepository userRepository;
+    private UserSearchIndex userSearchIndex;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkSupport.start("keyword" + users);
+        BenchmarkSupport.seed(context, users, 2);
+        userRepository = context.getBean(UserRepository.class);
+        userSearchIndex = context.getBean(UserSearchIndex.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<User> jpqlFindByKeyword() {
+        return userRepository.findByKeyword(page, keyword).getContent();
+    }
+
+    @Benchmark
+    public List<User> indexedSearch() {
+        return userRepository.findAllByIdInOrder(userSearchIndex.search(keyword, page).getContent());
+    }
+}
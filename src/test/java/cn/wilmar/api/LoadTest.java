@@ -0,0 +1,686 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 负载测试的配置，见 {@link LoadTestRunner}
+ */
+final class LoadSettings {
+
+    static final String DEFAULT_MIX = "search=40,get=30,create=10,patch=10,assign=5,delete=5";
+
+    int users;
+    int roles;
+    int clients;
+    int warmupSeconds;
+    int durationSeconds;
+    int intervalSeconds;
+    double rate;
+    Map<LoadOperation, Integer> mix;
+    String[] app;
+    String version;
+    String result;
+    String baseline;
+
+    /**
+     * @param properties 配置项，没有的返回 null 或空字符串
+     */
+    static LoadSettings of(Function<String, String> properties) {
+        LoadSettings settings = new LoadSettings();
+        settings.users = Integer.parseInt(property(properties, "load.users", "10000"));
+        settings.roles = Integer.parseInt(property(properties, "load.roles", "10"));
+        settings.clients = Integer.parseInt(property(properties, "load.clients", "32"));
+        settings.warmupSeconds = Integer.parseInt(property(properties, "load.warmup", "10"));
+        settings.durationSeconds = Integer.parseInt(property(properties, "load.duration", "60"));
+        settings.intervalSeconds = Integer.parseInt(property(properties, "load.interval", "10"));
+        settings.rate = Double.parseDouble(property(properties, "load.rate", "0"));
+        settings.mix = mix(property(properties, "load.mix", DEFAULT_MIX));
+        String app = property(properties, "load.app", "");
+        settings.app = app.isEmpty() ? new String[0] : app.split(";");
+        settings.version = property(properties, "load.version", "unknown");
+        settings.result = property(properties, "load.result", "target/load-result.json");
+        settings.baseline = property(properties, "load.baseline", "");
+        return settings;
+    }
+
+    private static String property(Function<String, String> properties, String key, String defaultValue) {
+        String value = properties.apply(key);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private static Map<LoadOperation, Integer> mix(String value) {
+        Map<LoadOperation, Integer> mix = new EnumMap<>(LoadOperation.class);
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split("=");
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight > 0) {
+                mix.put(LoadOperation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("load.mix has no operation: " + value);
+        }
+        return mix;
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("users", users);
+        map.put("roles", roles);
+        map.put("clients", clients);
+        map.put("warmupSeconds", warmupSeconds);
+        map.put("durationSeconds", durationSeconds);
+        map.put("intervalSeconds", intervalSeconds);
+        map.put("rate", rate);
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        mix.forEach((operation, weight) -> weights.put(operation.name().toLowerCase(Locale.ROOT), weight));
+        map.put("mix", weights);
+        map.put("app", app);
+        return map;
+    }
+}
+
+/**
+ * 负载测试中的请求类型
+ */
+enum LoadOperation {
+    /**
+     * GET /api/users?keyword=，每个关键字约匹配 10 个用户
+     */
+    SEARCH,
+    /**
+     * GET /api/users/{id}，随机的测试用户
+     */
+    GET,
+    /**
+     * POST /api/users，新建的用户留给本客户端之后删除
+     */
+    CREATE,
+    /**
+     * PATCH /api/users/{id}，修改随机测试用户的姓名
+     */
+    PATCH,
+    /**
+     * POST /api/users/roles/grant，给 10 个随机用户授予随机角色
+     */
+    ASSIGN,
+    /**
+     * DELETE /api/users/{id}，删除本客户端新建的用户，没有可删除的时改为新建
+     */
+    DELETE
+}
+
+/**
+ * 负载测试：每个客户端一个线程、一个长连接，按比例随机选择请求。
+ * 延迟用 HdrHistogram 记录（微秒），限速时从计划发送时间算起，避免服务变慢时少记慢请求（coordinated omission）。
+ * 应用与客户端在同一 JVM 中，堆和 GC 数据包含客户端自身的开销
+ */
+class LoadTest {
+
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final LoadSettings settings;
+    private final String host;
+    private final int port;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<LoadOperation, OperationStats> stats = new EnumMap<>(LoadOperation.class);
+    private final LoadOperation[] operations;
+    private final int[] cumulativeWeights;
+    private volatile boolean stopped;
+
+    LoadTest(LoadSettings settings, String host, int port) {
+        this.settings = settings;
+        this.host = host;
+        this.port = port;
+        for (LoadOperation operation : LoadOperation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+        this.operations = settings.mix.keySet().toArray(new LoadOperation[0]);
+        this.cumulativeWeights = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += settings.mix.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    /**
+     * 预热之后测量 load.duration 秒，期间每 load.interval 秒输出一行
+     *
+     * @return 报告
+     */
+    Map<String, Object> run() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(settings.clients, runnable -> {
+            Thread thread = new Thread(runnable, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < settings.clients; i++) {
+            int client = i;
+            running.add(clients.submit(() -> drive(client)));
+        }
+        try {
+            TimeUnit.SECONDS.sleep(settings.warmupSeconds);
+            stats.values().forEach(OperationStats::reset);
+            JvmSnapshot jvmStart = JvmSnapshot.take();
+
+            List<Map<String, Object>> intervals = new ArrayList<>();
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+            JvmSnapshot previous = jvmStart;
+            long intervalStart = start;
+            while (System.nanoTime() < end) {
+                long next = Math.min(end, intervalStart + TimeUnit.SECONDS.toNanos(settings.intervalSeconds));
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+                long now = System.nanoTime();
+                JvmSnapshot current = JvmSnapshot.take();
+                intervals.add(interval(TimeUnit.NANOSECONDS.toSeconds(now - start), now - intervalStart, previous, current));
+                previous = current;
+                intervalStart = now;
+            }
+            return report(System.nanoTime() - start, jvmStart, previous, intervals);
+        } finally {
+            stopped = true;
+            clients.shutdown();
+            for (Future<?> future : running) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    private void drive(int client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Deque<Long> created = new ArrayDeque<>();
+        long sequence = 0;
+        long pacingNanos = settings.rate > 0 ? (long) (settings.clients * 1e9 / settings.rate) : 0;
+        long intended = System.nanoTime();
+        try (LoadHttpClient http = new LoadHttpClient(host, port)) {
+            while (!stopped) {
+                if (pacingNanos > 0) {
+                    intended += pacingNanos;
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                LoadOperation operation = next(random);
+                if (operation == LoadOperation.DELETE && created.isEmpty()) {
+                    operation = LoadOperation.CREATE;
+                }
+                long start = pacingNanos > 0 ? intended : System.nanoTime();
+                int status;
+                try {
+                    status = execute(http, operation, client, ++sequence, created, random);
+                } catch (IOException e) {
+                    status = 0;
+                }
+                if (pacingNanos == 0) {
+                    intended = System.nanoTime();
+                }
+                stats.get(operation).record(System.nanoTime() - start, status);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private LoadOperation next(ThreadLocalRandom random) {
+        int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    private int execute(LoadHttpClient http, LoadOperation operation, int client, long sequence,
+                        Deque<Long> created, ThreadLocalRandom random) throws IOException {
+        switch (operation) {
+            case SEARCH:
+                // user + 6 位数字，匹配 10 个测试用户
+                return http.request("GET", "/api/users?size=20&keyword="
+                        + BenchmarkSupport.login(random.nextInt(settings.users)).substring(0, 10), null).status;
+            case GET:
+                return http.request("GET", "/api/users/" + randomUser(random), null).status;
+            case CREATE:
+                String login = "load" + client + "x" + sequence;
+                LoadHttpClient.Response response = http.request("POST", "/api/users",
+                        "{\"login\": \"" + login + "\", \"name\": \"Load " + login + "\", \"email\": \"" + login + "@example.com\"}");
+                if (response.status == 201) {
+                    created.push(objectMapper.readTree(response.body).get("id").asLong());
+                }
+                return response.status;
+            case PATCH:
+                return http.request("PATCH", "/api/users/" + randomUser(random),
+                        "{\"name\": \"Patched " + sequence + "\"}").status;
+            case ASSIGN:
+                StringBuilder userIds = new StringBuilder();
+                for (int i = 0; i < 10; i++) {
+                    userIds.append(i == 0 ? "" : ", ").append(randomUser(random));
+                }
+                return http.request("POST", "/api/users/roles/grant", "{\"userIds\": [" + userIds + "], \"roleIds\": ["
+                        + (BenchmarkSupport.SEED_ID_OFFSET + random.nextInt(settings.roles)) + "]}").status;
+            case DELETE:
+                return http.request("DELETE", "/api/users/" + created.pop(), null).status;
+            default:
+                throw new IllegalStateException(operation.name());
+        }
+    }
+
+    private long randomUser(ThreadLocalRandom random) {
+        return BenchmarkSupport.SEED_ID_OFFSET + random.nextInt(settings.users);
+    }
+
+    private Map<String, Object> interval(long elapsedSeconds, long nanos, JvmSnapshot previous, JvmSnapshot current) {
+        Histogram histogram = null;
+        long requests = 0;
+        long errors = 0;
+        for (OperationStats operation : stats.values()) {
+            Histogram interval = operation.interval();
+            if (histogram == null) {
+                histogram = interval.copy();
+            } else {
+                histogram.add(interval);
+            }
+            requests += interval.getTotalCount();
+            errors += operation.intervalErrors;
+        }
+        double seconds = nanos / 1e9;
+        Map<String, Object> interval = new LinkedHashMap<>();
+        interval.put("elapsedSeconds", elapsedSeconds);
+        interval.put("throughput", round(requests / seconds));
+        interval.put("errors", errors);
+        interval.put("p50Ms", millis(histogram.getValueAtPercentile(50)));
+        interval.put("p99Ms", millis(histogram.getValueAtPercentile(99)));
+        interval.put("maxMs", millis(histogram.getMaxValue()));
+        interval.put("heapUsedMb", current.heapUsedMb);
+        interval.put("heapAfterGcMb", current.heapAfterGcMb);
+        interval.putAll(current.since(previous));
+        System.out.printf("[%5ds] %9.1f req/s  errors %d  p50 %7.2f ms  p99 %8.2f ms  max %8.2f ms  heap %5d MB (after GC %5d MB)  GC %d (%d ms)%n",
+                elapsedSeconds, requests / seconds, errors, interval.get("p50Ms"), interval.get("p99Ms"), interval.get("maxMs"),
+                current.heapUsedMb, current.heapAfterGcMb, interval.get("gcCount"), interval.get("gcTimeMs"));
+        return interval;
+    }
+
+    private Map<String, Object> report(long nanos, JvmSnapshot start, JvmSnapshot end, List<Map<String, Object>> intervals) {
+        double seconds = nanos / 1e9;
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", settings.version);
+        report.put("commit", commit());
+        report.put("timestamp", Instant.now().toString());
+        report.put("java", System.getProperty("java.version"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("settings", settings.toMap());
+
+        Histogram all = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        long errors = 0;
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Map.Entry<LoadOperation, OperationStats> entry : stats.entrySet()) {
+            OperationStats operation = entry.getValue();
+            if (operation.total.getTotalCount() == 0) {
+                continue;
+            }
+            all.add(operation.total);
+            errors += operation.errors;
+            operations.put(entry.getKey().name().toLowerCase(Locale.ROOT), summary(operation.total, operation.errors, seconds, operation.totalStatuses));
+        }
+        report.put("totals", summary(all, errors, seconds, null));
+        report.put("operations", operations);
+
+        Map<String, Object> jvm = new LinkedHashMap<>();
+        jvm.put("heapMaxMb", end.heapMaxMb);
+        jvm.put("heapUsedStartMb", start.heapUsedMb);
+        jvm.put("heapUsedEndMb", end.heapUsedMb);
+        jvm.put("heapAfterGcStartMb", start.heapAfterGcMb);
+        jvm.put("heapAfterGcEndMb", end.heapAfterGcMb);
+        jvm.putAll(end.since(start));
+        jvm.put("collectors", end.collectorsSince(start));
+        report.put("jvm", jvm);
+        report.put("intervals", intervals);
+        return report;
+    }
+
+    private static Map<String, Object> summary(Histogram histogram, long errors, double seconds, Map<String, Long> statuses) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        long count = histogram.getTotalCount();
+        summary.put("count", count);
+        summary.put("errors", errors);
+        summary.put("errorRate", count == 0 ? 0 : Math.round((double) errors / count * 1e6) / 1e6);
+        summary.put("throughput", round(count / seconds));
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("mean", round(histogram.getMean() / 1000));
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            latency.put("p" + (percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile)),
+                    millis(histogram.getValueAtPercentile(percentile)));
+        }
+        latency.put("max", millis(histogram.getMaxValue()));
+        summary.put("latencyMs", latency);
+        if (statuses != null) {
+            summary.put("statuses", statuses);
+        }
+        return summary;
+    }
+
+    private static double millis(long micros) {
+        return round(micros / 1000.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static String commit() {
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            copy(git.getInputStream(), output);
+            return git.waitFor() == 0 ? output.toString("UTF-8").trim() : null;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * 一种请求的统计。客户端线程无锁记录，主线程按时间段取出并累加到 total（延迟）、errors 和 totalStatuses
+     */
+    private static final class OperationStats {
+
+        final Recorder recorder = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        final Histogram total = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        /**
+         * 状态码 -> 次数，0 表示连接错误
+         */
+        final Map<String, Long> totalStatuses = new TreeMap<>();
+        long errors;
+        long intervalErrors;
+
+        void record(long nanos, int status) {
+            recorder.recordValue(Math.min(HIGHEST_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+            statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+        }
+
+        /**
+         * 取出上次调用之后的数据，同时计算这段时间的错误数（状态码不是 2xx/3xx）
+         */
+        Histogram interval() {
+            Histogram interval = recorder.getIntervalHistogram();
+            total.add(interval);
+            intervalErrors = 0;
+            statuses.forEach((status, count) -> {
+                long n = count.sumThenReset();
+                if (n > 0) {
+                    totalStatuses.merge(String.valueOf(status), n, Long::sum);
+                    if (status < 200 || status >= 400) {
+                        intervalErrors += n;
+                    }
+                }
+            });
+            errors += intervalErrors;
+            return interval;
+        }
+
+        void reset() {
+            recorder.reset();
+            statuses.values().forEach(LongAdder::reset);
+            total.reset();
+            totalStatuses.clear();
+            errors = 0;
+        }
+    }
+
+    /**
+     * 堆使用量（当前和上次 GC 之后）与各收集器的累计次数和时间
+     */
+    private static final class JvmSnapshot {
+
+        long heapMaxMb;
+        long heapUsedMb;
+        long heapAfterGcMb;
+        final Map<String, long[]> collectors = new LinkedHashMap<>();
+
+        static JvmSnapshot take() {
+            JvmSnapshot snapshot = new JvmSnapshot();
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            snapshot.heapMaxMb = heap.getMax() >> 20;
+            snapshot.heapUsedMb = heap.getUsed() >> 20;
+            long afterGc = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) {
+                    afterGc += pool.getCollectionUsage().getUsed();
+                }
+            }
+            snapshot.heapAfterGcMb = afterGc >> 20;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                snapshot.collectors.put(collector.getName(), new long[]{collector.getCollectionCount(), collector.getCollectionTime()});
+            }
+            return snapshot;
+        }
+
+        Map<String, Object> since(JvmSnapshot previous) {
+            long count = 0;
+            long time = 0;
+            for (Map.Entry<String, long[]> entry : collectors.entrySet()) {
+                long[] before = previous.collectors.getOrDefault(entry.getKey(), new long[2]);
+                count += entry.getValue()[0] - before[0];
+                time += entry.getValue()[1] - before[1];
+            }
+            Map<String, Object> gc = new LinkedHashMap<>();
+            gc.put("gcCount", count);
+            gc.put("gcTimeMs", time);
+            return gc;
+        }
+
+        Map<String, Object> collectorsSince(JvmSnapshot previous) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            collectors.forEach((name, value) -> {
+                long[] before = previous.collectors.getOrDefault(name, new long[2]);
+                Map<String, Long> collector = new LinkedHashMap<>();
+                collector.put("count", value[0] - before[0]);
+                collector.put("timeMs", value[1] - before[1]);
+                result.put(name, collector);
+            });
+            return result;
+        }
+    }
+}
+
+/**
+ * 最小的 HTTP/1.1 客户端：一个长连接，请求和响应串行，支持 Content-Length 和 chunked 响应。
+ * HttpURLConnection 不支持 PATCH，而且连接复用不受调用方控制
+ */
+final class LoadHttpClient implements Closeable {
+
+    static final class Response {
+        final int status;
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    LoadHttpClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param json 请求体，没有时为 null
+     */
+    Response request(String method, String path, String json) throws IOException {
+        boolean reused = socket != null;
+        try {
+            return send(method, path, json);
+        } catch (IOException e) {
+            close();
+            if (!reused) {
+                throw e;
+            }
+            // 服务端已关闭空闲连接，重连一次
+            return send(method, path, json);
+        }
+    }
+
+    private Response send(String method, String path, String json) throws IOException {
+        if (socket == null) {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            socket.setSoTimeout(60_000);
+            in = new BufferedInputStream(socket.getInputStream(), 16384);
+            out = socket.getOutputStream();
+        }
+        byte[] body = json == null ? null : json.getBytes(StandardCharsets.UTF_8);
+        StringBuilder head = new StringBuilder(256)
+                .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host).append(':').append(port).append("\r\n")
+                .append("Accept: application/json\r\n");
+        if (body != null) {
+            head.append("Content-Type: application/json\r\nContent-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        ByteArrayOutputStream request = new ByteArrayOutputStream(head.length() + (body == null ? 0 : body.length));
+        request.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (body != null) {
+            request.write(body);
+        }
+        request.writeTo(out);
+        out.flush();
+        return read(method);
+    }
+
+    private Response read(String method) throws IOException {
+        String statusLine = line();
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = false;
+        for (String header; !(header = line()).isEmpty(); ) {
+            int colon = header.indexOf(':');
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close = value.equalsIgnoreCase("close");
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (method.equals("HEAD") || status == 204 || status == 304 || status / 100 == 1) {
+            // 没有响应体
+        } else if (chunked) {
+            for (long size; (size = Long.parseLong(line().split(";")[0].trim(), 16)) > 0; ) {
+                readFully(body, size);
+                line();
+            }
+            while (!line().isEmpty()) {
+                // 忽略 trailer
+            }
+        } else if (contentLength >= 0) {
+            readFully(body, contentLength);
+        } else {
+            close = true;
+            for (int b; (b = in.read()) != -1; ) {
+                body.write(b);
+            }
+        }
+        if (close) {
+            close();
+        }
+        return new Response(status, body.toByteArray());
+    }
+
+    private String line() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int b; (b = in.read()) != '\n'; ) {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private void readFully(ByteArrayOutputStream body, long size) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (long remaining = size; remaining > 0; ) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n == -1) {
+                throw new IOException("Connection closed");
+            }
+            body.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+            socket = null;
+        }
+    }
+}
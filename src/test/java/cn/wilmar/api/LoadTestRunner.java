@@ -0,0 +1,76 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * 负载/浸泡测试：启动应用（随机端口）并写入测试数据，按配置的比例持续发送搜索、查询、新建、修改、分配角色和删除请求，
+ * 按时间段输出吞吐量、延迟百分位、错误率和堆/GC 数据，最后写出 JSON 报告，便于不同提交之间对比
+ * <p>
+ * 运行：mvn -Pload test-compile exec:exec -Dload.duration=3600 -Dload.interval=60
+ * <p>
+ * 系统属性（默认值见 {@link LoadSettings}）：
+ * <ul>
+ * <li>load.users、load.roles：写入的用户数和角色数</li>
+ * <li>load.clients：并发客户端数，每个客户端一个长连接</li>
+ * <li>load.warmup、load.duration、load.interval：预热、测量时长和报告间隔（秒）</li>
+ * <li>load.rate：总请求速率（次/秒），0 表示不限速；限速时延迟从计划发送时间算起</li>
+ * <li>load.mix：请求比例，如 search=40,get=30,create=10,patch=10,assign=5,delete=5</li>
+ * <li>load.app：应用的额外配置，分号分隔，如 api.async.enabled=true;server.tomcat.max-threads=16</li>
+ * <li>load.result：报告文件；load.baseline：之前的报告，输出与它的对比</li>
+ * </ul>
+ */
+public class LoadTestRunner {
+
+    public static void main(String[] args) throws Exception {
+        LoadSettings settings = LoadSettings.of(System::getProperty);
+        Map<String, Object> report;
+        try (ConfigurableApplicationContext context = BenchmarkSupport.start("load", settings.app)) {
+            BenchmarkSupport.seed(context, settings.users, settings.roles);
+            int port = Integer.parseInt(context.getEnvironment().getProperty("local.server.port"));
+            report = new LoadTest(settings, "localhost", port).run();
+        }
+
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        File result = new File(settings.result);
+        if (result.getParentFile() != null) {
+            result.getParentFile().mkdirs();
+        }
+        objectMapper.writeValue(result, report);
+        System.out.println("Report written to " + result.getAbsolutePath());
+        if (!settings.baseline.isEmpty()) {
+            compare(objectMapper.readTree(new File(settings.baseline)), objectMapper.valueToTree(report));
+        }
+    }
+
+    /**
+     * 按操作输出吞吐量和 p99 延迟相对于基线报告的变化
+     */
+    static void compare(JsonNode baseline, JsonNode current) {
+        System.out.printf("Compared with %s (%s):%n", baseline.path("version").asText(), baseline.path("commit").asText());
+        System.out.printf("%-8s %14s %14s %9s %12s %12s %9s%n", "", "req/s before", "req/s after", "change", "p99 before", "p99 after", "change");
+        current.get("operations").fields().forEachRemaining(entry -> {
+            JsonNode before = baseline.path("operations").path(entry.getKey());
+            if (before.isMissingNode()) {
+                return;
+            }
+            JsonNode after = entry.getValue();
+            double throughputBefore = before.get("throughput").asDouble();
+            double throughputAfter = after.get("throughput").asDouble();
+            double p99Before = before.get("latencyMs").get("p99").asDouble();
+            double p99After = after.get("latencyMs").get("p99").asDouble();
+            System.out.printf("%-8s %14.1f %14.1f %+8.1f%% %12.2f %12.2f %+8.1f%%%n", entry.getKey(),
+                    throughputBefore, throughputAfter, change(throughputBefore, throughputAfter),
+                    p99Before, p99After, change(p99Before, p99After));
+        });
+    }
+
+    private static double change(double before, double after) {
+        return before == 0 ? 0 : (after - before) * 100 / before;
+    }
+}
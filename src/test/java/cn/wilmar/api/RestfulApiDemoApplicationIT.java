@@ -0,0 +1,226 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.actuate.health.HealthEndpoint;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 需要另外启动应用（独立的内存数据库）的集成测试：生产配置的连接池负载、fast profile、两个实例的集群同步、负载测试驱动。
+ * 耗时较长，mvn verify 时由 failsafe 运行，mvn test 不运行
+ */
+public class RestfulApiDemoApplicationIT {
+
+    private final Logger logger = LoggerFactory.getLogger(RestfulApiDemoApplicationIT.class);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 生产配置（prod profile）的连接池在 500 个并发的 /api/users 请求下不会耗尽：全部成功，没有获取连接超时
+     */
+    @Test
+    public void testConnectionPoolUnderLoad() throws Exception {
+        int clients = 500;
+        try (ConfigurableApplicationContext prod = BenchmarkSupport.start("poolload", "spring.profiles.active=prod")) {
+            BenchmarkSupport.seed(prod, 10000, 10);
+            String baseUrl = "http://localhost:" + prod.getEnvironment().getProperty("local.server.port");
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Integer>> responses = new ArrayList<>();
+                for (int i = 0; i < clients; i++) {
+                    String path = i % 2 == 0 ? "/api/users?size=50&page=" + (i % 20) : "/api/users?keyword=user00" + (i % 100);
+                    responses.add(executor.submit(() -> {
+                        start.await();
+                        return httpGet(baseUrl + path);
+                    }));
+                }
+                start.countDown();
+                for (Future<Integer> response : responses) {
+                    assertThat(response.get(60, TimeUnit.SECONDS)).isEqualTo(200);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            MeterRegistry registry = prod.getBean(MeterRegistry.class);
+            assertThat(registry.get("hikaricp.connections.timeout").tag("pool", "api-pool").counter().count()).isEqualTo(0);
+            assertThat(registry.get("hikaricp.connections.acquire").tag("pool", "api-pool").timer().count()).isGreaterThan(0);
+            // 匿名请求只返回状态，明细直接从健康检查端点读取
+            assertThat(objectMapper.readTree(new URL(baseUrl + "/actuator/health")).has("details")).isFalse();
+            JsonNode pool = objectMapper.valueToTree(prod.getBean(HealthEndpoint.class).health().getDetails().get("connectionPool"));
+            assertThat(pool.get("status").asText()).isEqualTo("UP");
+            assertThat(pool.get("details").get("max").asInt()).isEqualTo(20);
+            logger.info("Connection pool after {} concurrent requests: {}", clients, pool.get("details"));
+        }
+    }
+
+    private static int httpGet(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) > 0) {
+                    // 读完响应
+                }
+            }
+        }
+        return status;
+    }
+
+    @Test
+    public void testFastStartMode() throws Exception {
+        try (ConfigurableApplicationContext fast = BenchmarkSupport.start("faststart", "spring.profiles.active=fast")) {
+            ConfigurableListableBeanFactory beanFactory = fast.getBeanFactory();
+            assertThat(beanFactory.getBeanDefinition("userController").isLazyInit()).isTrue();
+            assertThat(beanFactory.getBeanDefinition("userSearchIndexUpdater").isLazyInit()).isFalse();
+            assertThat(beanFactory.containsSingleton("userSearchIndexUpdater")).isTrue();
+
+            // 测试数据在后台加载
+            String baseUrl = "http://localhost:" + fast.getEnvironment().getProperty("local.server.port");
+            JsonNode users = objectMapper.readTree(new URL(baseUrl + "/api/users"));
+            for (int i = 0; i < 100 && users.size() < 4; i++) {
+                Thread.sleep(50);
+                users = objectMapper.readTree(new URL(baseUrl + "/api/users"));
+            }
+            assertThat(users).hasSize(4);
+            assertThat(users.get(0).get("roles")).hasSize(2);
+
+            // 请求处理完的事件在写出响应之后发布
+            JsonNode startup = objectMapper.readTree(new URL(baseUrl + "/actuator/startup"));
+            for (int i = 0; i < 100 && !startup.get("phasesMs").has("firstRequest"); i++) {
+                Thread.sleep(50);
+                startup = objectMapper.readTree(new URL(baseUrl + "/actuator/startup"));
+            }
+            assertThat(startup.get("phasesMs").has("ready")).isTrue();
+            assertThat(startup.get("phasesMs").has("firstRequest")).isTrue();
+            assertThat(startup.get("durationsMs").has("seedAsync")).isTrue();
+            assertThat(startup.get("slowestBeansMs").size()).isGreaterThan(0);
+            logger.info("Fast start: {}", startup);
+        }
+    }
+
+    @Test
+    public void testClusterInvalidation() throws Exception {
+        // 两个实例共用一个数据库：A 建表并加载测试数据，B 只连接；同一 JVM 内不能重复注册 JMX MBean
+        try (ConfigurableApplicationContext nodeA = BenchmarkSupport.start("cluster", "api.cluster.name=test-cluster",
+                "spring.jmx.enabled=false");
+             ConfigurableApplicationContext nodeB = BenchmarkSupport.start("cluster", "api.cluster.name=test-cluster",
+                     "spring.jmx.enabled=false", "spring.jpa.hibernate.ddl-auto=none", "api.seed.enabled=false")) {
+            MockMvc mvcA = MockMvcBuilders.webAppContextSetup((WebApplicationContext) nodeA).build();
+            String baseUrlB = "http://localhost:" + nodeB.getEnvironment().getProperty("local.server.port");
+
+            // B 缓存的用户在 A 修改之后失效
+            assertThat(objectMapper.readTree(new URL(baseUrlB + "/api/users/1")).get("name").asText()).isNotEqualTo("Cluster User");
+            mvcA.perform(patch("/api/users/1").contentType(MediaType.APPLICATION_JSON).content("{\"name\": \"Cluster User\"}"))
+                    .andExpect(status().isOk());
+            JsonNode user = objectMapper.readTree(new URL(baseUrlB + "/api/users/1"));
+            for (int i = 0; i < 100 && !user.get("name").asText().equals("Cluster User"); i++) {
+                Thread.sleep(50);
+                user = objectMapper.readTree(new URL(baseUrlB + "/api/users/1"));
+            }
+            assertThat(user.get("name").asText()).isEqualTo("Cluster User");
+
+            // A 新建的用户在 B 的搜索索引和登录账号过滤器中可见，删除之后不再可见
+            long created = objectMapper.readTree(mvcA.perform(post("/api/users").contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"login\": \"clusteruser\", \"name\": \"Cluster Created\", \"email\": \"cluster@example.com\"}"))
+                    .andExpect(status().isCreated()).andReturn().getResponse().getContentAsString()).get("id").asLong();
+            URL search = new URL(baseUrlB + "/api/users?keyword=clusteruser");
+            for (int i = 0; i < 100 && objectMapper.readTree(search).size() == 0; i++) {
+                Thread.sleep(50);
+            }
+            assertThat(objectMapper.readTree(search)).hasSize(1);
+            assertThat(nodeB.getBean(UserLoginRegistry.class).mightExist(Stream.of("clusteruser").collect(Collectors.toList()))).hasSize(1);
+            mvcA.perform(delete("/api/users/" + created)).andExpect(status().isNoContent());
+            for (int i = 0; i < 100 && objectMapper.readTree(search).size() > 0; i++) {
+                Thread.sleep(50);
+            }
+            assertThat(objectMapper.readTree(search)).isEmpty();
+
+            // 角色 ID 由各实例从 role_seq 预留的区间分配，不冲突；B 缓存的角色列表随 A 的修改失效
+            RoleRepository rolesA = nodeA.getBean(RoleRepository.class);
+            RoleRepository rolesB = nodeB.getBean(RoleRepository.class);
+            long before = StreamSupport.stream(rolesB.findAll().spliterator(), false).count();
+            Role roleA = rolesA.save(new Role("Role A", RoleCode.USER));
+            Role roleB = rolesB.save(new Role("Role B", RoleCode.USER));
+            assertThat(roleA.getId()).isNotEqualTo(roleB.getId());
+            RestfulApiDemoApplicationTests.performAsync(mvcA, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"userIds\": [1], \"roleIds\": [" + roleA.getId() + "]}"))
+                    .andExpect(jsonPath("$.changedUsers").value(1));
+            long after = before;
+            for (int i = 0; i < 100 && after < before + 2; i++) {
+                Thread.sleep(50);
+                after = StreamSupport.stream(rolesB.findAll().spliterator(), false).count();
+            }
+            assertThat(after).isEqualTo(before + 2);
+            user = objectMapper.readTree(new URL(baseUrlB + "/api/users/1"));
+            for (int i = 0; i < 100 && user.get("roles").size() < 3; i++) {
+                Thread.sleep(50);
+                user = objectMapper.readTree(new URL(baseUrlB + "/api/users/1"));
+            }
+            assertThat(user.get("roles")).hasSize(3);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLoadDriver() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("load.users", "500");
+        properties.put("load.roles", "3");
+        properties.put("load.clients", "4");
+        properties.put("load.warmup", "0");
+        properties.put("load.duration", "3");
+        properties.put("load.interval", "1");
+        // 删除只针对本客户端新建的用户，提高新建和删除的比例，慢的机器上 3 秒内也能覆盖全部操作
+        properties.put("load.mix", "search=20,get=20,create=20,patch=10,assign=10,delete=20");
+        LoadSettings settings = LoadSettings.of(properties::get);
+        try (ConfigurableApplicationContext load = BenchmarkSupport.start("loaddriver", "spring.jmx.enabled=false")) {
+            BenchmarkSupport.seed(load, settings.users, settings.roles);
+            int port = Integer.parseInt(load.getEnvironment().getProperty("local.server.port"));
+            Map<String, Object> report = new LoadTest(settings, "localhost", port).run();
+
+            Map<String, Map<String, Object>> operations = (Map<String, Map<String, Object>>) report.get("operations");
+            assertThat(operations).containsKeys("search", "get", "create", "patch", "assign", "delete");
+            assertThat(operations.get("search").get("errors")).isEqualTo(0L);
+            assertThat((Map<String, Long>) operations.get("get").get("statuses")).containsOnlyKeys("200");
+            assertThat((Map<String, Long>) operations.get("create").get("statuses")).containsKey("201");
+            assertThat((List<?>) report.get("intervals")).hasSize(3);
+            assertThat(report).containsKeys("totals", "jvm", "commit");
+            logger.info("Load driver: {}", report.get("totals"));
+        }
+    }
+}
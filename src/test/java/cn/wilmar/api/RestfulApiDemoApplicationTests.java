@@ -1,6 +1,14 @@
 package cn.wilmar.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.assertj.core.api.Assertions;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -9,17 +17,61 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MockMvcBuilder;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -34,6 +86,28 @@ public class RestfulApiDemoApplicationTests {
 
     @Autowired TestRestTemplate restTemplate;
 
+    @Autowired UserRepository userRepository;
+
+    @Autowired RoleRepository roleRepository;
+
+    @Autowired EntityManagerFactory entityManagerFactory;
+
+    @Autowired MeterRegistry meterRegistry;
+
+    @Autowired ObjectMapper objectMapper;
+
+    @Autowired RateLimitProperties rateLimitProperties;
+
+    @Autowired JdbcTemplate jdbcTemplate;
+
+    @Autowired TransactionTemplate transactionTemplate;
+
+    @Autowired UserChangeFeed changeFeed;
+
+    @Autowired ClusterSync clusterSync;
+
+    @Autowired UserSearchIndex userSearchIndex;
+
 //    private final
 
     @Before
@@ -63,4 +137,768 @@ public class RestfulApiDemoApplicationTests {
         assertThat(entity.getBody().getLogin().equals("test"));
     }
 
+    @Test
+    public void testSearchUsersByIndex() {
+        User newUser = new User("Search Me", "searchme", "searchme@example.com");
+        ResponseEntity<User> created = this.restTemplate.postForEntity("/api/users", newUser, User.class);
+        assertThat(created.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+
+        ResponseEntity<User[]> found = this.restTemplate.getForEntity("/api/users?keyword=ARCHM", User[].class);
+        assertThat(found.getBody()).extracting(User::getLogin).containsExactly("searchme");
+
+        // 默认按 ID 排序，sort=score,desc 时登录名前缀匹配排在包含匹配之前
+        User prefix = this.restTemplate.postForEntity("/api/users", new User("Prefix", "archmprefix", "prefix@example.com"), User.class).getBody();
+        assertThat(this.restTemplate.getForEntity("/api/users?keyword=archm", User[].class).getBody())
+                .extracting(User::getLogin).containsExactly("searchme", "archmprefix");
+        assertThat(this.restTemplate.getForEntity("/api/users?keyword=archm&sort=score,desc", User[].class).getBody())
+                .extracting(User::getLogin).containsExactly("archmprefix", "searchme");
+        assertThat(this.restTemplate.getForEntity("/api/users?keyword=archm&sort=score,desc&size=1&page=1", User[].class).getBody())
+                .extracting(User::getLogin).containsExactly("searchme");
+        this.restTemplate.delete("/api/users/" + prefix.getId());
+
+        // 无关键字时按 ID 顺序分页
+        List<Long> all = userRepository.findAll(Sort.by("id")).stream().map(User::getId).collect(Collectors.toList());
+        assertThat(this.restTemplate.getForEntity("/api/users?size=2&page=1", User[].class).getBody())
+                .extracting(User::getId).containsExactlyElementsOf(all.subList(2, Math.min(4, all.size())));
+        assertThat(this.restTemplate.getForEntity("/api/users?size=1&sort=id,desc", User[].class).getBody())
+                .extracting(User::getId).containsExactly(all.get(all.size() - 1));
+
+        this.restTemplate.delete("/api/users/" + created.getBody().getId());
+        found = this.restTemplate.getForEntity("/api/users?keyword=ARCHM", User[].class);
+        assertThat(found.getBody()).isEmpty();
+    }
+
+    @Test
+    public void testKeywordWildcardsMatchLiterally() {
+        User literal = userRepository.save(new User("Wild 50%_off", "wild50pct", "wild50pct@example.com"));
+        try {
+            // JPQL 查询转义了 % 和 _，与索引一样按字面匹配
+            for (String keyword : Arrays.asList("50%_", "%", "_", "\\")) {
+                List<Long> indexed = userSearchIndex.search(keyword, Pageable.unpaged()).getContent();
+                assertThat(userRepository.findIdsByKeyword(Pageable.unpaged(), keyword).getContent())
+                        .as(keyword).containsExactlyInAnyOrderElementsOf(indexed);
+            }
+            assertThat(userRepository.findIdsByKeyword(Pageable.unpaged(), "50%_").getContent()).containsExactly(literal.getId());
+            assertThat(userRepository.findIdsByKeyword(Pageable.unpaged(), "%").getContent()).containsExactly(literal.getId());
+        } finally {
+            userRepository.delete(literal);
+        }
+    }
+
+    @Test
+    public void testSearchIndexRebuildKeepsServing() {
+        UserSearchIndex index = new UserSearchIndex();
+        index.put(1L, "alpha", "Alpha", "alpha@example.com");
+        index.put(2L, "beta", "Beta", "beta@example.com");
+        index.rebuild(consumer -> {
+            // 重建期间查询仍使用原来的数据
+            assertThat(index.search("alpha", Pageable.unpaged()).getContent()).containsExactly(1L);
+            consumer.accept(new Object[]{1L, "alpha", "Alpha", "alpha@example.com"});
+            // 重建期间的修改立即可见，并在替换之前重放到新数据上
+            index.put(3L, "gamma", "Gamma", "gamma@example.com");
+            index.remove(2L);
+            assertThat(index.search("", Pageable.unpaged()).getContent()).containsExactly(1L, 3L);
+            consumer.accept(new Object[]{2L, "beta", "Beta", "beta@example.com"});
+        });
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.search("", Pageable.unpaged()).getContent()).containsExactly(1L, 3L);
+        assertThat(index.search("gam", Pageable.unpaged()).getContent()).containsExactly(3L);
+    }
+
+    @Test
+    public void testKeysetPagination() {
+        Stream.of("a", "b", "c").forEach(suffix -> this.restTemplate.postForEntity("/api/users",
+                new User("Keyset " + suffix, "keyset" + suffix, "keyset" + suffix + "@example.com"), User.class));
+
+        ResponseEntity<User[]> first = this.restTemplate.getForEntity("/api/users?keyword=keyset&size=2&after=", User[].class);
+        assertThat(first.getBody()).extracting(User::getLogin).containsExactly("keyseta", "keysetb");
+        String cursor = first.getHeaders().getFirst("X-RestfulApiDemo-next-cursor");
+        assertThat(cursor).isNotNull();
+
+        ResponseEntity<User[]> second = this.restTemplate.getForEntity("/api/users?keyword=keyset&size=2&after=" + cursor, User[].class);
+        assertThat(second.getBody()).extracting(User::getLogin).containsExactly("keysetc");
+        assertThat(second.getHeaders().containsKey("X-RestfulApiDemo-next-cursor")).isFalse();
+
+        assertThat(this.restTemplate.getForEntity("/api/users?after=bad", String.class).getStatusCode())
+                .isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testListUsersWithConstantStatements() {
+        Role role = roleRepository.findAll().iterator().next();
+        List<User> users = IntStream.range(0, 100).mapToObj(i -> {
+            User user = new User("Batch User " + i, "nplusone" + i, "nplusone" + i + "@example.com");
+            user.getRoles().add(role);
+            return user;
+        }).collect(Collectors.toList());
+        userRepository.saveAll(users);
+
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            for (String url : new String[]{"/api/users?keyword=nplusone&size=100", "/api/users?keyword=nplusone&size=100&after="}) {
+                statistics.clear();
+                ResponseEntity<User[]> entity = this.restTemplate.getForEntity(url, User[].class);
+                assertThat(entity.getBody()).hasSize(100);
+                assertThat(entity.getBody()).allSatisfy(user -> assertThat(user.getRoles()).hasSize(1));
+                assertThat(statistics.getPrepareStatementCount()).as(url).isLessThanOrEqualTo(3);
+            }
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    /**
+     * 新建测试自己的用户并授予角色，不修改共用的测试数据（用户 1~4）
+     */
+    private User fixture(String login, RoleCode... roles) throws Exception {
+        User user = this.restTemplate.postForEntity("/api/users", new User(login, login, login + "@example.com"), User.class).getBody();
+        for (RoleCode role : roles) {
+            mvc.perform(post("/api/users/" + user.getId() + "/roles/" + roleId(role))).andExpect(status().isCreated());
+        }
+        return user;
+    }
+
+    private Long roleId(RoleCode code) {
+        return StreamSupport.stream(roleRepository.findAll().spliterator(), false)
+                .filter(role -> role.getCode() == code).findFirst().get().getId();
+    }
+
+    @Test
+    public void testPatchUserReturnsRoles() throws Exception {
+        User user = fixture("patchroles", RoleCode.USER, RoleCode.ADMIN);
+        mvc.perform(patch("/api/users/" + user.getId()).contentType(MediaType.APPLICATION_JSON).content("{\"name\": \"Patch Roles\"}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.roles", hasSize(2)));
+        this.restTemplate.delete("/api/users/" + user.getId());
+    }
+
+    @Test
+    public void testUserCacheEvictedOnPatch() throws Exception {
+        String path = "/api/users/" + fixture("cachepatch", RoleCode.USER).getId();
+        FunctionCounter hits = meterRegistry.get("cache.gets").tags("cache", CacheNames.USERS, "result", "hit").functionCounter();
+        mvc.perform(get(path)).andExpect(status().isOk());
+        double before = hits.count();
+        mvc.perform(get(path)).andExpect(status().isOk());
+        assertThat(hits.count()).isEqualTo(before + 1);
+
+        mvc.perform(patch(path).contentType(MediaType.APPLICATION_JSON).content("{\"name\": \"Cache Patch (cached)\"}"))
+                .andExpect(status().isOk());
+        mvc.perform(get(path))
+                .andExpect(jsonPath("$.name").value("Cache Patch (cached)"));
+        this.restTemplate.delete(path);
+    }
+
+    @Test
+    public void testRoleChangeEvictsOnlyChangedUsers() throws Exception {
+        String changed = "/api/users/" + fixture("cacherole", RoleCode.USER).getId();
+        String other = "/api/users/" + fixture("cacheother", RoleCode.USER).getId();
+        FunctionCounter misses = meterRegistry.get("cache.gets").tags("cache", CacheNames.USERS, "result", "miss").functionCounter();
+        mvc.perform(get(changed)).andExpect(status().isOk());
+        mvc.perform(get(other)).andExpect(status().isOk());
+
+        double before = misses.count();
+        // 只清除被修改的用户：授予角色后重新加载它（一次未命中），其他用户仍在缓存中
+        mvc.perform(post(changed + "/roles/" + roleId(RoleCode.ADMIN))).andExpect(status().isCreated())
+                .andExpect(jsonPath("$.roles", hasSize(2)));
+        assertThat(misses.count()).isEqualTo(before + 1);
+        mvc.perform(get(other)).andExpect(status().isOk());
+        mvc.perform(get(changed)).andExpect(jsonPath("$.roles", hasSize(2)));
+        assertThat(misses.count()).isEqualTo(before + 1);
+        this.restTemplate.delete(changed);
+        this.restTemplate.delete(other);
+    }
+
+    @Test
+    public void testUserCacheEvictedAfterCommit() {
+        Long id = this.restTemplate.postForEntity("/api/users", new User("Cache Race", "cacherace", "cacherace@example.com"), User.class)
+                .getBody().getId();
+        // 缓存中是副本，修改返回的对象不影响缓存
+        userRepository.findById(id).get().setName("Changed In Cache");
+        assertThat(userRepository.findById(id).get().getName()).isEqualTo("Cache Race");
+
+        transactionTemplate.execute(status -> {
+            User user = userRepository.findUncachedById(id).get();
+            user.setName("Cache Race 2");
+            userRepository.save(user);
+            // 提交之前其他线程读到旧数据并放回缓存，提交之后的清除使它失效
+            String name = CompletableFuture.supplyAsync(() -> userRepository.findById(id).get().getName()).join();
+            assertThat(name).isEqualTo("Cache Race");
+            return null;
+        });
+        assertThat(userRepository.findById(id).get().getName()).isEqualTo("Cache Race 2");
+        this.restTemplate.delete("/api/users/" + id);
+    }
+
+    @Test
+    public void testConditionalRequestsWithETag() throws Exception {
+        User created = this.restTemplate.postForEntity("/api/users", new User("ETag User", "etaguser", "etag@example.com"), User.class).getBody();
+        String path = "/api/users/" + created.getId();
+        String etag = mvc.perform(get(path)).andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(etag).isNotNull();
+
+        mvc.perform(get(path).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        mvc.perform(patch(path).header(HttpHeaders.IF_MATCH, "\"999\"").contentType(MediaType.APPLICATION_JSON).content("{\"name\": \"Lost\"}"))
+                .andExpect(status().isPreconditionFailed());
+        String newEtag = mvc.perform(patch(path).header(HttpHeaders.IF_MATCH, etag).contentType(MediaType.APPLICATION_JSON).content("{\"name\": \"Won\"}"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(newEtag).isNotEqualTo(etag);
+
+        mvc.perform(get(path).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("Won"));
+        mvc.perform(delete(path).header(HttpHeaders.IF_MATCH, etag)).andExpect(status().isPreconditionFailed());
+        mvc.perform(delete(path).header(HttpHeaders.IF_MATCH, newEtag)).andExpect(status().isNoContent());
+    }
+
+    @Test
+    public void testAsyncExecutorLimitsConcurrency() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ApiExecutor executor = new ApiExecutor(registry, true, 2, 10, false, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<ResponseEntity<String>> running = completion(executor.submit("test", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ResponseEntity.ok("done");
+            }));
+            for (int i = 0; i < 100 && registry.get("api.async.running").gauge().value() < 1; i++) {
+                Thread.sleep(10);
+            }
+            assertThat(registry.get("api.async.running").gauge().value()).isEqualTo(1);
+            assertThat(registry.get("api.async.queued").gauge().value()).isEqualTo(0);
+            assertThat(completion(executor.submit("test", () -> ResponseEntity.ok("rejected"))).get().getStatusCode())
+                    .isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+            assertThat(completion(executor.submit("other", () -> ResponseEntity.ok("other"))).get(5, TimeUnit.SECONDS).getBody())
+                    .isEqualTo("other");
+            release.countDown();
+            assertThat(running.get(5, TimeUnit.SECONDS).getBody()).isEqualTo("done");
+        } finally {
+            release.countDown();
+            executor.destroy();
+        }
+
+        // 关闭时在调用线程中执行，返回已经设置结果的 DeferredResult
+        ApiExecutor inline = new ApiExecutor(new SimpleMeterRegistry(), false, 2, 10, false, 1);
+        DeferredResult<ResponseEntity<String>> result = inline.submit("test", () -> ResponseEntity.ok("inline"));
+        assertThat(result.hasResult()).isTrue();
+        assertThat(((ResponseEntity<?>) result.getResult()).getBody()).isEqualTo("inline");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> CompletableFuture<T> completion(DeferredResult<T> result) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        result.setResultHandler(value -> future.complete((T) value));
+        return future;
+    }
+
+    /**
+     * 执行请求，异步处理（批量授予、撤销角色）时等待结果并完成异步分派
+     */
+    static ResultActions performAsync(MockMvc mvc, RequestBuilder request) throws Exception {
+        ResultActions actions = mvc.perform(request);
+        MvcResult result = actions.andReturn();
+        if (!result.getRequest().isAsyncStarted()) {
+            return actions;
+        }
+        result.getAsyncResult();
+        return mvc.perform(asyncDispatch(result));
+    }
+
+    @Test
+    public void testRequestStatsRecorded() {
+        assertThat(this.restTemplate.getForEntity("/api/users/2", String.class).getStatusCode()).isEqualTo(HttpStatus.OK);
+        this.restTemplate.getForEntity("/api/users?keyword=liang", String.class);
+
+        String endpoint = "GET /api/users";
+        assertThat(meterRegistry.get(RequestStatsFilter.LATENCY).tag("endpoint", endpoint).timer().count()).isGreaterThan(0);
+        assertThat(meterRegistry.get(RequestStatsFilter.STATEMENTS).tag("endpoint", endpoint).summary().max()).isGreaterThan(0);
+        assertThat(meterRegistry.get(RequestStatsFilter.ENTITIES).tag("endpoint", endpoint).summary().count()).isGreaterThan(0);
+        assertThat(meterRegistry.get(RequestStatsFilter.REPOSITORY_CALLS)
+                .tags("endpoint", endpoint, "method", "UserRepository.findViewRowsByIdIn").counter().count()).isGreaterThan(0);
+
+        ResponseEntity<Map> stats = this.restTemplate.getForEntity("/actuator/apistats", Map.class);
+        assertThat(stats.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(stats.getBody()).containsKeys(endpoint, "GET /api/users/{id}");
+        assertThat((Map<String, Object>) ((Map<String, Object>) stats.getBody().get(endpoint)).get("latencyMs")).containsKeys("p50", "p99", "p999");
+    }
+
+    @Test
+    public void testBulkRoleAssignment() throws Exception {
+        Long admin = roleId(RoleCode.ADMIN);
+        Long first = fixture("bulkfirst", RoleCode.USER).getId();
+        Long second = fixture("bulksecond", RoleCode.USER).getId();
+        String assignment = "{\"userIds\": [" + first + ", " + second + ", " + second + ", 999999], \"roleIds\": [" + admin + "]}";
+        String etag = mvc.perform(get("/api/users/" + first)).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        performAsync(mvc, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON).content(assignment))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users").value(3))
+                .andExpect(jsonPath("$.changedUsers").value(2))
+                .andExpect(jsonPath("$.changedRows").value(2))
+                .andExpect(jsonPath("$.missingUserIds[0]").value(999999));
+        String grantedEtag = mvc.perform(get("/api/users/" + first))
+                .andExpect(jsonPath("$.roles", hasSize(2)))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(grantedEtag).isNotEqualTo(etag);
+
+        // 重复执行不产生变化
+        performAsync(mvc, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON).content(assignment))
+                .andExpect(jsonPath("$.changedUsers").value(0))
+                .andExpect(jsonPath("$.changedRows").value(0));
+        mvc.perform(get("/api/users/" + first)).andExpect(header().string(HttpHeaders.ETAG, grantedEtag));
+        mvc.perform(post("/api/users/" + first + "/roles/" + admin))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.roles", hasSize(2)));
+
+        performAsync(mvc, post("/api/users/roles/revoke").contentType(MediaType.APPLICATION_JSON).content(assignment))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.changedRows").value(2));
+        mvc.perform(get("/api/users/" + second)).andExpect(jsonPath("$.roles", hasSize(1)));
+        mvc.perform(post("/api/users/" + second + "/roles/" + admin)).andExpect(status().isCreated());
+        mvc.perform(delete("/api/users/" + second + "/roles/" + admin)).andExpect(status().isNoContent());
+        mvc.perform(get("/api/users/" + second)).andExpect(jsonPath("$.roles", hasSize(1)));
+
+        performAsync(mvc, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON).content("{\"userIds\": [" + first + "], \"roleIds\": [999]}"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.missingRoleIds[0]").value(999));
+        performAsync(mvc, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON).content("{\"userIds\": [], \"roleIds\": [1]}"))
+                .andExpect(status().isBadRequest());
+        performAsync(mvc, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON).content("{\"userIds\": [null], \"roleIds\": [1]}"))
+                .andExpect(status().isBadRequest());
+        performAsync(mvc, post("/api/users/roles/revoke").contentType(MediaType.APPLICATION_JSON).content("{\"userIds\": [" + first + "], \"roleIds\": [1, null]}"))
+                .andExpect(status().isBadRequest());
+        this.restTemplate.delete("/api/users/" + first);
+        this.restTemplate.delete("/api/users/" + second);
+    }
+
+    @Test
+    public void testConcurrentGrantsOfSamePair() throws Exception {
+        Long id = this.restTemplate.postForEntity("/api/users", new User("Grant Race", "grantrace", "grantrace@example.com"), User.class)
+                .getBody().getId();
+        String assignment = "{\"userIds\": [" + id + "], \"roleIds\": [1, 2]}";
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<ResponseEntity<JsonNode>>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(pool.submit(() -> {
+                    start.await();
+                    return this.restTemplate.postForEntity("/api/users/roles/grant", new HttpEntity<>(assignment, headers), JsonNode.class);
+                }));
+            }
+            start.countDown();
+            int changedRows = 0;
+            int changedUsers = 0;
+            for (Future<ResponseEntity<JsonNode>> response : responses) {
+                assertThat(response.get().getStatusCode()).isEqualTo(HttpStatus.OK);
+                changedRows += response.get().getBody().path("changedRows").asInt();
+                changedUsers += response.get().getBody().path("changedUsers").asInt();
+            }
+            assertThat(changedRows).isEqualTo(2);
+            assertThat(changedUsers).isEqualTo(1);
+            assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM user_change WHERE entity_id = ? AND change_type = 'ROLES_CHANGED'",
+                    Long.class, id)).isEqualTo(1);
+            assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM user_roles WHERE user_id = ?", Long.class, id)).isEqualTo(2);
+        } finally {
+            pool.shutdownNow();
+            this.restTemplate.delete("/api/users/" + id);
+        }
+    }
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        assertThat(rateLimitProperties.getEndpointRates()).containsEntry("GET /api/users", 200.0);
+        assertThat(rateLimitProperties.getShedding().getExcluded()).contains("GET /api/changes");
+
+        RateLimitProperties properties = new RateLimitProperties();
+        properties.setClientRate(1);
+        properties.setClientBurst(2);
+        properties.getShedding().setInitialLimit(1);
+        properties.getShedding().setMinLimit(1);
+        properties.getShedding().setMaxLimit(1);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ApiAdmissionFilter filter = new ApiAdmissionFilter(properties, registry);
+
+        // 客户端令牌桶：突发 2 个，第 3 个返回 429，其他客户端不受影响
+        assertThat(admit(filter, "a", null).getStatus()).isEqualTo(200);
+        assertThat(admit(filter, "a", null).getStatus()).isEqualTo(200);
+        MockHttpServletResponse limited = admit(filter, "a", null);
+        assertThat(limited.getStatus()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS.value());
+        assertThat(limited.getHeader(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+        assertThat(admit(filter, "b", null).getStatus()).isEqualTo(200);
+        // 更换请求头不能绕过限制，认证身份单独计算
+        MockHttpServletRequest rotated = request("GET", "a");
+        rotated.addHeader("X-Api-Key", "rotated");
+        assertThat(admit(filter, rotated, null).getStatus()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS.value());
+        MockHttpServletRequest authenticated = request("GET", "a");
+        authenticated.setUserPrincipal(() -> "admin");
+        assertThat(admit(filter, authenticated, null).getStatus()).isEqualTo(200);
+        // 关闭按来源地址区分后，没有认证身份的请求只受接口的限制
+        properties.setRemoteAddressFallback(false);
+        assertThat(admit(filter, "a", null).getStatus()).isEqualTo(200);
+        properties.setRemoteAddressFallback(true);
+
+        // 接口的速率按请求方法和路径覆盖
+        RateLimitProperties endpointProperties = new RateLimitProperties();
+        endpointProperties.setEndpointBurst(1);
+        endpointProperties.getEndpointRates().put("PATCH /api/users/{id}", 0.01);
+        ApiAdmissionFilter endpointFilter = new ApiAdmissionFilter(endpointProperties, new SimpleMeterRegistry());
+        assertThat(admit(endpointFilter, request("PATCH", "f"), null).getStatus()).isEqualTo(200);
+        assertThat(admit(endpointFilter, request("PATCH", "g"), null).getStatus()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS.value());
+        assertThat(admit(endpointFilter, request("GET", "h"), null).getStatus()).isEqualTo(200);
+
+        // 并发上限：第一个请求未完成时第二个请求返回 503
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<MockHttpServletResponse> slow = CompletableFuture.supplyAsync(() -> admit(filter, "c", () -> {
+            entered.countDown();
+            release.await();
+        }));
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        MockHttpServletResponse shed = admit(filter, "d", null);
+        assertThat(shed.getStatus()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE.value());
+        assertThat(shed.getHeader(HttpHeaders.RETRY_AFTER)).isNotNull();
+        release.countDown();
+        assertThat(slow.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(200);
+        assertThat(registry.get(ApiAdmissionFilter.METRIC_PREFIX + ".rejected")
+                .tags("endpoint", "GET /api/users/{id}", "reason", "overload").counter().count()).isEqualTo(1);
+
+        // 延迟超过目标时降低并发上限
+        properties.getShedding().setInitialLimit(10);
+        properties.getShedding().setMaxLimit(10);
+        properties.getShedding().setLatencyTargetMs(1);
+        SimpleMeterRegistry adaptiveRegistry = new SimpleMeterRegistry();
+        ApiAdmissionFilter adaptive = new ApiAdmissionFilter(properties, adaptiveRegistry);
+        for (int i = 0; i < 3; i++) {
+            admit(adaptive, "e" + i, () -> Thread.sleep(5));
+        }
+        assertThat(adaptiveRegistry.get(ApiAdmissionFilter.METRIC_PREFIX + ".limit").gauge().value()).isLessThan(10.0);
+    }
+
+    interface Work {
+        void run() throws Exception;
+    }
+
+    private static MockHttpServletRequest request(String method, String client) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/api/users/1");
+        request.setRemoteAddr(client);
+        return request;
+    }
+
+    private static MockHttpServletResponse admit(ApiAdmissionFilter filter, String client, Work work) {
+        return admit(filter, request("GET", client), work);
+    }
+
+    private static MockHttpServletResponse admit(ApiAdmissionFilter filter, MockHttpServletRequest request, Work work) {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            filter.doFilter(request, response, new MockFilterChain(new HttpServlet() {
+                @Override
+                protected void service(HttpServletRequest req, HttpServletResponse resp) {
+                    try {
+                        if (work != null) {
+                            work.run();
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return response;
+    }
+
+    @Test
+    public void testChangeFeed() throws Exception {
+        long head = objectMapper.readTree(this.restTemplate.getForObject("/api/changes", String.class)).get("next").asLong();
+        CompletableFuture<String> poll = CompletableFuture.supplyAsync(
+                () -> this.restTemplate.getForObject("/api/changes?since=" + head + "&wait=10000", String.class));
+
+        User created = this.restTemplate.postForEntity("/api/users", new User("Feed User", "feeduser", "feed@example.com"), User.class).getBody();
+        JsonNode polled = objectMapper.readTree(poll.get(10, TimeUnit.SECONDS)).get("changes").get(0);
+        assertThat(polled.get("changeType").asText()).isEqualTo("CREATED");
+        assertThat(polled.get("entityId").asLong()).isEqualTo(created.getId());
+        assertThat(polled.get("user").get("login").asText()).isEqualTo("feeduser");
+
+        String path = "/api/users/" + created.getId();
+        mvc.perform(patch(path).contentType(MediaType.APPLICATION_JSON).content("{\"name\": \"Feed User 2\"}"))
+                .andExpect(status().isOk());
+        performAsync(mvc, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"userIds\": [" + created.getId() + "], \"roleIds\": [1]}"))
+                .andExpect(jsonPath("$.changedUsers").value(1));
+        mvc.perform(delete(path)).andExpect(status().isNoContent());
+
+        JsonNode batch = objectMapper.readTree(this.restTemplate.getForObject("/api/changes?since=" + head, String.class));
+        List<String> types = new ArrayList<>();
+        List<Long> versions = new ArrayList<>();
+        batch.get("changes").forEach(change -> {
+            if (change.get("entityId").asLong() == created.getId()) {
+                types.add(change.get("changeType").asText());
+                versions.add(change.get("version").asLong());
+            }
+        });
+        assertThat(types).containsExactly("CREATED", "UPDATED", "ROLES_CHANGED", "DELETED");
+        assertThat(versions).containsExactly(0L, 1L, 2L, 2L);
+        assertThat(batch.get("next").asLong()).isGreaterThan(head);
+        assertThat(objectMapper.readTree(this.restTemplate.getForObject("/api/changes?since=" + batch.get("next").asLong(), String.class))
+                .get("changes")).isEmpty();
+
+        // 清理之后（最新的一条保留），since 之后的记录已被删除时返回 410，since=0 从保留的最早记录开始；
+        // 先让集群核对追上，避免它因记录被清理而全量重建索引
+        clusterSync.reconcile();
+        assertThat(changeFeed.prune(LocalDateTime.now().plusMinutes(1))).isGreaterThan(0);
+        assertThat(this.restTemplate.getForEntity("/api/changes?since=" + head, String.class).getStatusCode()).isEqualTo(HttpStatus.GONE);
+        JsonNode oldest = objectMapper.readTree(this.restTemplate.getForObject("/api/changes?since=0", String.class));
+        assertThat(oldest.get("changes")).hasSize(1);
+        assertThat(oldest.get("next").asLong()).isEqualTo(batch.get("next").asLong());
+    }
+
+    /**
+     * 消息丢失（这里是直接写库，不经过 Hibernate，也不发送消息）的变化在核对之后生效
+     */
+    @Test
+    public void testClusterReconciliation() throws Exception {
+        // 本实例自己的变化带有本实例的 origin，核对时跳过，不清除它的缓存
+        User local = fixture("reconcilelocal");
+        assertThat(jdbcTemplate.queryForObject("SELECT origin FROM user_change WHERE entity_id = ? ORDER BY seq DESC LIMIT 1",
+                String.class, local.getId())).isEqualTo(clusterSync.nodeId());
+        mvc.perform(get("/api/users/" + local.getId())).andExpect(status().isOk());
+        clusterSync.reconcile();
+        FunctionCounter misses = meterRegistry.get("cache.gets").tags("cache", CacheNames.USERS, "result", "miss").functionCounter();
+        double before = misses.count();
+        mvc.perform(get("/api/users/" + local.getId())).andExpect(status().isOk());
+        assertThat(misses.count()).isEqualTo(before);
+
+        long id = 9_000_001L;
+        jdbcTemplate.update("INSERT INTO user (id, login, name, email, version, created_date, created_by) "
+                + "VALUES (?, 'lostmessage', 'Lost Message', 'lost@example.com', 0, CURRENT_TIMESTAMP, 'system')", id);
+        jdbcTemplate.update("INSERT INTO user_change (entity_type, entity_id, change_type, version, changed_date, changed_by) "
+                + "VALUES ('USER', ?, 'CREATED', 0, CURRENT_TIMESTAMP, 'system')", id);
+        String search = "/api/users?keyword=lostmessage";
+        assertThat(objectMapper.readTree(this.restTemplate.getForObject(search, String.class))).isEmpty();
+
+        assertThat(clusterSync.reconcile()).isEqualTo(1);
+        assertThat(objectMapper.readTree(this.restTemplate.getForObject(search, String.class))).hasSize(1);
+        // 其他实例的变化只清除涉及的用户
+        before = misses.count();
+        mvc.perform(get("/api/users/" + local.getId())).andExpect(status().isOk());
+        assertThat(misses.count()).isEqualTo(before);
+        assertThat(context.getBean(UserLoginRegistry.class).mightExist(Stream.of("lostmessage").collect(Collectors.toList()))).hasSize(1);
+        // 重复核对不会重复处理
+        assertThat(clusterSync.reconcile()).isEqualTo(0);
+
+        jdbcTemplate.update("DELETE FROM user WHERE id = ?", id);
+        jdbcTemplate.update("INSERT INTO user_change (entity_type, entity_id, change_type, version, changed_date, changed_by) "
+                + "VALUES ('USER', ?, 'DELETED', 0, CURRENT_TIMESTAMP, 'system')", id);
+        assertThat(clusterSync.reconcile()).isEqualTo(1);
+        assertThat(objectMapper.readTree(this.restTemplate.getForObject(search, String.class))).isEmpty();
+        this.restTemplate.delete("/api/users/" + local.getId());
+    }
+
+    @Test
+    public void testImportUsers() throws Exception {
+        String ndjson = "{\"login\": \"imported1\", \"name\": \"Imported 1\", \"email\": \"imported1@example.com\"}\n"
+                + "{\"login\": \"yinguowei\", \"name\": \"Duplicate\", \"email\": \"dup@example.com\"}\n"
+                + "{\"name\": \"No Login\", \"email\": \"nologin@example.com\"}\n"
+                + "{\"login\": \"imported1\", \"name\": \"Imported 1 again\", \"email\": \"imported1@example.com\"}\n";
+        String body = mvc.perform(post("/api/users/import").contentType("application/x-ndjson").content(ndjson))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        List<ImportResult> results = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            results.add(objectMapper.readValue(line, ImportResult.class));
+        }
+        assertThat(results).extracting(ImportResult::getStatus).containsExactly(201, 409, 400, 409);
+        assertThat(userRepository.getUserByLogin("imported1")).isPresent();
+        assertThat(results.get(0).getId()).isEqualTo(userRepository.getUserByLogin("imported1").get().getId());
+    }
+
+    @Test
+    public void testFieldSelection() throws Exception {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            statistics.clear();
+            JsonNode users = objectMapper.readTree(this.restTemplate.getForObject("/api/users?fields=id,login&size=100", String.class));
+            assertThat(users.size()).isGreaterThan(0);
+            for (JsonNode user : users) {
+                assertThat(user.fieldNames()).containsExactly("id", "login");
+            }
+            assertThat(statistics.getEntityLoadCount()).isEqualTo(0);
+            assertThat(statistics.getQueries()).noneMatch(query -> query.contains("roles"));
+
+            // 只选择 id 时查询只有一列
+            for (String fields : new String[]{"id", "ID"}) {
+                ResponseEntity<String> ids = this.restTemplate.getForEntity("/api/users?fields=" + fields + "&size=5", String.class);
+                assertThat(ids.getStatusCode()).isEqualTo(HttpStatus.OK);
+                JsonNode page = objectMapper.readTree(ids.getBody());
+                assertThat(page.size()).isGreaterThan(0);
+                for (JsonNode user : page) {
+                    assertThat(user.fieldNames()).containsExactly("id");
+                }
+            }
+
+            statistics.clear();
+            JsonNode first = objectMapper.readTree(this.restTemplate.getForObject("/api/users?fields=login,roles&keyword=yinguowei", String.class)).get(0);
+            assertThat(first.fieldNames()).containsExactly("login", "roles");
+            assertThat(first.get("roles")).hasSize(2);
+            assertThat(statistics.getQueries()).anyMatch(query -> query.contains("u.roles"));
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+
+        ResponseEntity<String> single = this.restTemplate.getForEntity("/api/users/1?fields=login", String.class);
+        assertThat(single.getBody()).isEqualTo("{\"login\":\"yinguowei\"}");
+        String etag = single.getHeaders().getETag();
+        assertThat(etag).isNotNull();
+        HttpHeaders ifNoneMatch = new HttpHeaders();
+        ifNoneMatch.setIfNoneMatch(etag);
+        assertThat(this.restTemplate.exchange("/api/users/1?fields=login", HttpMethod.GET, new HttpEntity<>(ifNoneMatch), String.class)
+                .getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+
+        assertThat(this.restTemplate.getForEntity("/api/users?fields=id,password", String.class).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(this.restTemplate.getForEntity("/api/users/999999?fields=id", String.class).getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    public void testLoginConflicts() throws Exception {
+        Counter absent = meterRegistry.get("api.login.registry.checks").tag("result", "absent").counter();
+        double absentBefore = absent.count();
+        ResponseEntity<User> created = this.restTemplate.postForEntity("/api/users", new User("Login Check", "logincheck", "logincheck@example.com"), User.class);
+        assertThat(created.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(absent.count()).isEqualTo(absentBefore + 1);
+
+        ResponseEntity<String> duplicate = this.restTemplate.postForEntity("/api/users", new User("Login Check", "logincheck", "other@example.com"), String.class);
+        assertThat(duplicate.getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        assertThat(duplicate.getHeaders().getFirst("X-RestfulApiDemo-error")).isNotEmpty();
+
+        // 并发创建同一账号：只有一个成功，其余由唯一约束拦截，返回 409 而不是 500
+        int clients = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<HttpStatus>> responses = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                User racer = new User("Racer " + i, "racer", "racer" + i + "@example.com");
+                responses.add(executor.submit(() -> {
+                    start.await();
+                    return this.restTemplate.postForEntity("/api/users", racer, String.class).getStatusCode();
+                }));
+            }
+            start.countDown();
+            List<HttpStatus> statuses = new ArrayList<>();
+            for (Future<HttpStatus> response : responses) {
+                statuses.add(response.get(30, TimeUnit.SECONDS));
+            }
+            assertThat(statuses).containsOnly(HttpStatus.CREATED, HttpStatus.CONFLICT);
+            assertThat(statuses).filteredOn(HttpStatus.CREATED::equals).hasSize(1);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // 绕过 Hibernate 写入的账号不在 registry 中，插入时由唯一约束拦截
+        jdbcTemplate.update("INSERT INTO user (id, name, login, email, version, created_date, created_by) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                BenchmarkSupport.SEED_ID_OFFSET - 1, "Direct Insert", "directinsert", "direct@example.com", 0L,
+                Timestamp.valueOf(LocalDateTime.now()), "system");
+        try {
+            assertThat(this.restTemplate.postForEntity("/api/users", new User("Direct Insert", "directinsert", "direct@example.com"), String.class)
+                    .getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        } finally {
+            jdbcTemplate.update("DELETE FROM user WHERE id = ?", BenchmarkSupport.SEED_ID_OFFSET - 1);
+        }
+    }
+
+    @Test
+    public void testAuditTrail() throws Exception {
+        Counter written = meterRegistry.get("api.audit.entries").tag("result", "written").counter();
+        double before = written.count();
+        User created = this.restTemplate.postForEntity("/api/users", new User("Audit User", "audituser", "audit@example.com"), User.class).getBody();
+        String path = "/api/users/" + created.getId();
+        mvc.perform(patch(path).contentType(MediaType.APPLICATION_JSON).content("{\"name\": \"Audit User 2\"}"))
+                .andExpect(status().isOk());
+        User user = userRepository.findById(created.getId()).get();
+        user.setPassword("secret");
+        userRepository.save(user);
+        Long role = roleId(RoleCode.USER);
+        mvc.perform(post(path + "/roles/" + role)).andExpect(status().isCreated());
+        mvc.perform(delete(path + "/roles/" + role)).andExpect(status().isNoContent());
+        // 已有该角色的用户不产生变化
+        User other = fixture("auditother", RoleCode.USER);
+        performAsync(mvc, post("/api/users/roles/grant").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"userIds\": [" + other.getId() + ", " + created.getId() + "], \"roleIds\": [" + role + "]}"))
+                .andExpect(jsonPath("$.changedUsers").value(1));
+        mvc.perform(delete(path)).andExpect(status().isNoContent());
+        this.restTemplate.delete("/api/users/" + other.getId());
+
+        String query = "/api/audit?entityType=USER&entityId=" + created.getId();
+        JsonNode entries = null;
+        for (int i = 0; i < 100 && (entries == null || entries.size() < 7); i++) {
+            Thread.sleep(50);
+            entries = objectMapper.readTree(this.restTemplate.getForObject(query, String.class)).get("entries");
+        }
+        List<String> actions = new ArrayList<>();
+        entries.forEach(entry -> actions.add(entry.get("action").asText()
+                + (entry.get("field").isNull() ? "" : ":" + entry.get("field").asText())));
+        assertThat(actions).containsExactly("DELETED", "ROLE_ADDED:roles", "ROLE_REMOVED:roles", "ROLE_ADDED:roles",
+                "UPDATED:password", "UPDATED:name", "CREATED");
+        assertThat(entries.get(0).get("oldValue").asText()).isEqualTo("audituser");
+        assertThat(entries.get(4).get("newValue").asText()).isEqualTo("******");
+        assertThat(entries.get(5).get("oldValue").asText()).isEqualTo("Audit User");
+        assertThat(entries.get(5).get("newValue").asText()).isEqualTo("Audit User 2");
+        assertThat(written.count()).isGreaterThanOrEqualTo(before + 7);
+
+        JsonNode page = objectMapper.readTree(this.restTemplate.getForObject(query + "&limit=2", String.class));
+        assertThat(page.get("entries")).hasSize(2);
+        JsonNode rest = objectMapper.readTree(this.restTemplate.getForObject(query + "&before=" + page.get("next").asLong(), String.class));
+        assertThat(rest.get("entries")).hasSize(5);
+
+        // 队列满时一次提交的所有记录合计最多等待 offer-timeout-ms，超时的丢弃（写入线程未启动，队列不会空出位置）
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        AuditTrail full = new AuditTrail(jdbcTemplate, registry, true, 1, 500, 200, "block", 200);
+        List<AuditEntry> batch = new ArrayList<>();
+        for (long i = 0; i < 5; i++) {
+            batch.add(AuditEntry.of(ChangeEntityType.USER, i, AuditAction.CREATED, null, null, null, LocalDateTime.now(), "system"));
+        }
+        full.record(batch);
+        assertThat(registry.get("api.audit.entries").tag("result", "queued").counter().count()).isEqualTo(1);
+        assertThat(registry.get("api.audit.entries").tag("result", "blocked").counter().count()).isEqualTo(4);
+        assertThat(registry.get("api.audit.entries").tag("result", "dropped").counter().count()).isEqualTo(4);
+        assertThat(full.queued()).isEqualTo(1);
+
+        // 等待中的预留在位置释放时被唤醒，而不是等到期限
+        AuditTrail waiting = new AuditTrail(jdbcTemplate, new SimpleMeterRegistry(), true, 1, 500, 200, "block", 60_000);
+        assertThat(waiting.reserve(1)).isEqualTo(1);
+        CompletableFuture<Integer> reserved = CompletableFuture.supplyAsync(() -> waiting.reserve(1));
+        waiting.release(1);
+        assertThat(reserved.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(waiting.queued()).isEqualTo(1);
+    }
+
+    @Test
+    public void testExportUsers() {
+        ResponseEntity<String> csv = this.restTemplate.getForEntity("/api/users/export?format=csv&keyword=liangjian", String.class);
+        assertThat(csv.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(csv.getBody().split("\r\n")).containsExactly(
+                "id,login,name,email,roles",
+                "2,liangjian,Liang Jian,liangjian@cn.wilmar-intl.com,Default User");
+
+        ResponseEntity<String> ndjson = this.restTemplate.getForEntity("/api/users/export", String.class);
+        assertThat(ndjson.getHeaders().getContentType().toString()).startsWith("application/x-ndjson");
+        assertThat(ndjson.getBody().split("\n").length).isEqualTo(userRepository.count());
+    }
+
 }
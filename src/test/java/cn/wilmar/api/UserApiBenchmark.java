@@ -0,0 +1,115 @@
+package cn.wilmar.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * /api/users 接口完整的 MockMvc 往返（路由、参数绑定、仓库、JSON 序列化）基准测试
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Dbenchmark.include=UserApiBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class UserApiBenchmark {
+
+    @Param({"10000"})
+    int users;
+
+    @Param({"10"})
+    int roles;
+
+    @Param({"00421"})
+    String keyword;
+
+    private final AtomicLong created = new AtomicLong();
+
+    private ConfigurableApplicationContext context;
+    private MockMvc mvc;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkSupport.start("api" + users);
+        BenchmarkSupport.seed(context, users, roles);
+        mvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String queryUsers() throws Exception {
+        return perform(get("/api/users").param("keyword", keyword));
+    }
+
+    @Benchmark
+    public String queryUsersByCursor() throws Exception {
+        return perform(get("/api/users").param("size", "100").param("after", ""));
+    }
+
+    @Benchmark
+    public String getUser() throws Exception {
+        return perform(get("/api/users/{id}", randomId()));
+    }
+
+    @Benchmark
+    public String saveUser() throws Exception {
+        String login = "bench" + created.incrementAndGet();
+        return perform(post("/api/users").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"login\": \"" + login + "\", \"name\": \"Bench User\", \"email\": \"" + login + "@example.com\"}"));
+    }
+
+    @Benchmark
+    public String patchUser() throws Exception {
+        return perform(patch("/api/users/{id}", randomId()).contentType(MediaType.APPLICATION_JSON)
+                .content("{\"name\": \"Patched " + ThreadLocalRandom.current().nextInt() + "\"}"));
+    }
+
+    /**
+     * 执行请求并返回响应体，异步处理的请求等待完成后再分派
+     */
+    private String perform(RequestBuilder request) throws Exception {
+        MvcResult result = mvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            result.getAsyncResult();
+            result = mvc.perform(asyncDispatch(result)).andReturn();
+        }
+        return result.getResponse().getContentAsString();
+    }
+
+    private long randomId() {
+        return BenchmarkSupport.SEED_ID_OFFSET + ThreadLocalRandom.current().nextInt(users);
+    }
+}
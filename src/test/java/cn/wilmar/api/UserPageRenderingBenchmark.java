@@ -0,0 +1,101 @@
+package cn.wilmar.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * /api/users 一页数据的加载和序列化：User 实体（@EntityGraph + 反射序列化）vs UserView（标量查询 + 预编码序列化器）
+ * vs ?fields=id,login（只查询两列，不连接角色表）
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Dbenchmark.include=UserPageRenderingBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class UserPageRenderingBenchmark {
+
+    @Param({"10000"})
+    int users;
+
+    @Param({"10"})
+    int roles;
+
+    @Param({"10", "100"})
+    int pageSize;
+
+    private static final Set<UserField> ID_AND_LOGIN = EnumSet.of(UserField.ID, UserField.LOGIN);
+
+    private ConfigurableApplicationContext context;
+    private UserRepository userRepository;
+    private UserViews userViews;
+    private ObjectMapper objectMapper;
+    private List<Long> ids;
+    private List<User> entities;
+    private List<UserView> views;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkSupport.start("rendering" + users);
+        BenchmarkSupport.seed(context, users, roles);
+        userRepository = context.getBean(UserRepository.class);
+        userViews = context.getBean(UserViews.class);
+        objectMapper = context.getBean(ObjectMapper.class);
+        ids = LongStream.range(0, pageSize).map(i -> BenchmarkSupport.SEED_ID_OFFSET + i * (users / pageSize))
+                .boxed().collect(Collectors.toList());
+        entities = userRepository.findAllByIdInOrder(ids);
+        views = userViews.findAllByIdInOrder(ids);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public byte[] renderEntities() throws Exception {
+        return objectMapper.writeValueAsBytes(userRepository.findAllByIdInOrder(ids));
+    }
+
+    @Benchmark
+    public byte[] renderViews() throws Exception {
+        return objectMapper.writeValueAsBytes(userViews.findAllByIdInOrder(ids));
+    }
+
+    @Benchmark
+    public byte[] renderIdAndLogin() throws Exception {
+        return objectMapper.writeValueAsBytes(userViews.findAllByIdInOrder(ids, ID_AND_LOGIN, false));
+    }
+
+    @Benchmark
+    public byte[] serializeEntities() throws Exception {
+        return objectMapper.writeValueAsBytes(entities);
+    }
+
+    @Benchmark
+    public byte[] serializeViews() throws Exception {
+        return objectMapper.writeValueAsBytes(views);
+    }
+}
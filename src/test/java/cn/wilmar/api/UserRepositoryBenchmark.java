@@ -0,0 +1,93 @@
+package cn.wilmar.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UserRepository 热点方法的基准测试
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Dbenchmark.include=UserRepositoryBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class UserRepositoryBenchmark {
+
+    @Param({"10000"})
+    int users;
+
+    @Param({"10"})
+    int roles;
+
+    @Param({"00421"})
+    String keyword;
+
+    private final Pageable page = PageRequest.of(0, 10);
+
+    private ConfigurableApplicationContext context;
+    private UserRepository userRepository;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkSupport.start("repository" + users);
+        BenchmarkSupport.seed(context, users, roles);
+        userRepository = context.getBean(UserRepository.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Page<User> findByKeyword() {
+        return userRepository.findByKeyword(page, keyword);
+    }
+
+    @Benchmark
+    public Page<User> findByLoginLikeOrNameLikeOrEmailLike() {
+        String like = "%" + keyword + "%";
+        return userRepository.findByLoginLikeIgnoreCaseOrNameLikeIgnoreCaseOrEmailLikeIgnoreCase(page, like, like, like);
+    }
+
+    @Benchmark
+    public Optional<User> findById() {
+        return userRepository.findById(randomId());
+    }
+
+    @Benchmark
+    public Optional<User> findUncachedById() {
+        return userRepository.findUncachedById(randomId());
+    }
+
+    @Benchmark
+    public Optional<User> getUserByLogin() {
+        return userRepository.getUserByLogin(BenchmarkSupport.login(ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    private long randomId() {
+        return BenchmarkSupport.SEED_ID_OFFSET + ThreadLocalRandom.current().nextInt(users);
+    }
+}